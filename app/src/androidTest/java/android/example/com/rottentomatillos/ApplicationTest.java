@@ -16,20 +16,47 @@
 package android.example.com.rottentomatillos;
 
 import android.app.Application;
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
 import android.content.ContentResolver;
 import android.content.ContentUris;
 import android.content.ContentValues;
+import android.database.ContentObserver;
 import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.example.com.rottentomatillos.data.MovieExportReader;
+import android.example.com.rottentomatillos.data.TomatilloContract;
 import android.example.com.rottentomatillos.data.TomatilloContract.Movie;
+import android.example.com.rottentomatillos.data.TomatilloContract.MovieChanges;
+import android.example.com.rottentomatillos.data.TomatilloContract.MovieImport;
+import android.example.com.rottentomatillos.data.TomatilloContract.MovieStats;
+import android.example.com.rottentomatillos.data.TomatilloDBHelper;
 import android.example.com.rottentomatillos.data.TomatilloProvider;
 import android.net.Uri;
+import android.os.Bundle;
+import android.os.ParcelFileDescriptor;
 import android.test.ApplicationTestCase;
 
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
 /**
  * This is a collection of tests for the associated Content Provider. See
  * {@link TomatilloProvider}
  */
 public class ApplicationTest extends ApplicationTestCase<Application> {
+    // Providers created by the test itself with createProvider(), shut down after it.
+    private final ArrayList<TomatilloProvider> mProviders = new ArrayList<TomatilloProvider>();
+
+    // Observers registered by the test with registerObserver(), unregistered after it.
+    private final ArrayList<ContentObserver> mObservers = new ArrayList<ContentObserver>();
+
     public ApplicationTest() {
         super(Application.class);
     }
@@ -45,6 +72,14 @@ public class ApplicationTest extends ApplicationTestCase<Application> {
 
     @Override
     protected void tearDown() throws Exception {
+        for (TomatilloProvider provider : mProviders) {
+            provider.shutdown();
+        }
+        mProviders.clear();
+        for (ContentObserver observer : mObservers) {
+            mContext.getContentResolver().unregisterContentObserver(observer);
+        }
+        mObservers.clear();
         super.tearDown();
         deleteAllRecords();
     }
@@ -200,6 +235,41 @@ public class ApplicationTest extends ApplicationTestCase<Application> {
         }
     }
 
+    /**
+     * Tests that {@link TomatilloProvider}'s bulk insert method skips movies that are already in
+     * the database, or are missing a title, and counts only the rows it inserted.
+     */
+    public void testBulkInsertDuplicates() {
+        ContentValues[] values = createDummyDataArray();
+        insertDummyData(new ContentValues[] { values[0] });
+
+        ContentValues noTitle = new ContentValues();
+        noTitle.put(Movie.RATING, 3);
+        ContentValues[] batch = new ContentValues[] { values[0], values[1], noTitle, values[1] };
+
+        int numberInserted = mContext.getContentResolver().bulkInsert(Movie.CONTENT_URI, batch);
+
+        assertEquals(1, numberInserted);
+        assertResultCount(Movie.CONTENT_URI, values.length);
+    }
+
+    /**
+     * Tests that a bulk insert on the upsert uri inserts new movies and updates the rating of
+     * movies that are already in the database.
+     */
+    public void testBulkInsertUpsert() {
+        ContentValues[] values = createDummyDataArray();
+        Uri[] uris = insertDummyData(new ContentValues[] { values[0] });
+
+        ContentValues rerated = createDummyDataOneMovie(values[0].getAsString(Movie.TITLE), 1);
+        int numberChanged = mContext.getContentResolver().bulkInsert(
+                Movie.buildUpsertUri(), new ContentValues[] { rerated, values[1] });
+
+        assertEquals(2, numberChanged);
+        assertResultCount(Movie.CONTENT_URI, values.length);
+        assertCorrectStoredValues(uris[0], rerated);
+    }
+
     /**
      * Tests {@link TomatilloProvider}'s delete method by
      * deleting the last entry in the table.
@@ -276,6 +346,44 @@ public class ApplicationTest extends ApplicationTestCase<Application> {
     }
 
 
+    /**
+     * Tests the single-movie query, rating update and delete, which use precompiled statements:
+     * their row counts for a movie that is there and one that is not, and that the writes
+     * notify the movie's Uri.
+     */
+    public void testSingleMovieStatements() throws Exception {
+        ContentResolver resolver = mContext.getContentResolver();
+        Uri[] uris = insertDummyData(createDummyDataArray());
+        Uri missing = ContentUris.withAppendedId(Movie.CONTENT_URI,
+                ContentUris.parseId(uris[1]) + 1000);
+        CountingObserver observer = registerObserver(uris[0], false);
+
+        Cursor cursor = resolver.query(uris[0], null, null, null, null);
+        try {
+            assertEquals(1, cursor.getCount());
+            assertTrue(cursor.moveToFirst());
+            assertEquals(ContentUris.parseId(uris[0]),
+                    cursor.getLong(cursor.getColumnIndex(Movie._ID)));
+            assertEquals("Pulp Fiction", cursor.getString(cursor.getColumnIndex(Movie.TITLE)));
+        } finally {
+            cursor.close();
+        }
+        assertResultCount(missing, 0);
+
+        ContentValues rating = new ContentValues();
+        rating.put(Movie.RATING, 2);
+        assertEquals(1, resolver.update(uris[0], rating, null, null));
+        assertNotified(observer, 1);
+        assertCorrectStoredValues(uris[0], rating);
+        assertEquals(0, resolver.update(missing, rating, null, null));
+
+        assertEquals(1, resolver.delete(uris[0], null, null));
+        assertNotified(observer, 2);
+        assertResultCount(uris[0], 0);
+        assertEquals(0, resolver.delete(missing, null, null));
+        assertResultCount(Movie.CONTENT_URI, 1);
+    }
+
     /**
      * Tests {@link TomatilloProvider}'s update by changing multiple entries.
      */
@@ -330,10 +438,1004 @@ public class ApplicationTest extends ApplicationTestCase<Application> {
         }
     }
 
+    /**
+     * Tests {@link TomatilloProvider}'s keyset pagination by walking the table one row at a time
+     * in title order.
+     */
+    public void testQueryPages() {
+        ContentValues[] values = createDummyDataArray();
+        insertDummyData(values);
+
+        // "Forrest Gump" sorts before "Pulp Fiction".
+        Uri pageUri = Movie.buildPageUri(Movie.TITLE, 1);
+        for (int i = values.length - 1; i >= 0; i--) {
+            Cursor cursor = mContext.getContentResolver().query(pageUri,
+                    new String[] { Movie._ID, Movie.TITLE }, null, null, null);
+            try {
+                assertEquals(1, cursor.getCount());
+                cursor.moveToFirst();
+                assertEquals(values[i].getAsString(Movie.TITLE), cursor.getString(1));
+                pageUri = Movie.buildPageUri(Movie.TITLE, 1, cursor.getString(1),
+                        cursor.getLong(0));
+            } finally {
+                cursor.close();
+            }
+        }
+        assertResultCount(pageUri, 0);
+    }
+
+    /**
+     * Tests the top rated queries and descending pages sorted by rating.
+     */
+    public void testTopRated() {
+        insertDummyData(createDummyDataArray());
+        insertDummyData(new ContentValues[] { createDummyDataOneMovie("Ponyo", 1),
+                createDummyDataOneMovie("Akira", 5) });
+
+        Cursor cursor = mContext.getContentResolver().query(Movie.buildTopRatedUri(4, 10),
+                new String[] { Movie._ID, Movie.TITLE, Movie.RATING }, null, null, null);
+        try {
+            // Equal ratings come newest first.
+            assertEquals(3, cursor.getCount());
+            cursor.moveToFirst();
+            assertEquals("Akira", cursor.getString(1));
+            cursor.moveToNext();
+            assertEquals("Pulp Fiction", cursor.getString(1));
+            cursor.moveToNext();
+            assertEquals("Forrest Gump", cursor.getString(1));
+
+            // The page after Pulp Fiction, in the same order.
+            cursor.moveToPosition(1);
+            assertResultCount(Movie.buildPageUri(Movie.RATING, true, 10, cursor.getString(2),
+                    cursor.getLong(0)), 2);
+        } finally {
+            cursor.close();
+        }
+        assertResultCount(Movie.buildTopRatedUri(1), 1);
+    }
+
+    /**
+     * Tests {@link TomatilloProvider}'s full-text search of movie titles.
+     */
+    public void testSearch() {
+        ContentValues[] values = createDummyDataArray();
+        Uri[] uris = insertDummyData(values);
+
+        // Matches whole words and word prefixes in any order, ignoring case and punctuation.
+        assertResultCount(Movie.buildSearchUri("fict PULP"), 1);
+        assertResultCount(Movie.buildSearchUri("Gump!"), 1);
+        assertResultCount(Movie.buildSearchUri("ump"), 0);
+        assertResultCount(Movie.buildSearchUri("--"), 0);
+
+        // The index follows changes to the movie table.
+        ContentValues renamed = new ContentValues();
+        renamed.put(Movie.TITLE, "Jackie Brown");
+        mContext.getContentResolver().update(uris[0], renamed, null, null);
+        assertResultCount(Movie.buildSearchUri("pulp"), 0);
+        assertResultCount(Movie.buildSearchUri("jackie"), 1);
+
+        mContext.getContentResolver().delete(uris[0], null, null);
+        assertResultCount(Movie.buildSearchUri("jackie"), 0);
+
+        insertDummyData(new ContentValues[] { createDummyDataOneMovie("Forrest Gump 2", 1) });
+        assertResultCount(Movie.buildSearchUri("forrest gump"), 2);
+        assertResultCount(Movie.buildSearchUri("forrest gump", 1), 1);
+    }
+
+    /**
+     * Tests that {@link TomatilloProvider}'s rating statistics follow inserts, updates and
+     * deletes.
+     */
+    public void testStats() {
+        assertStats(0, 0, 0);
+
+        // Pulp Fiction is rated 5 and Forrest Gump 4.
+        Uri[] uris = insertDummyData(createDummyDataArray());
+        assertStats(2, 0, 4.5);
+
+        ContentValues valuesUpdated = new ContentValues();
+        valuesUpdated.put(Movie.RATING, 1);
+        mContext.getContentResolver().update(uris[0], valuesUpdated, null, null);
+        assertStats(2, 1, 2.5);
+
+        mContext.getContentResolver().delete(uris[0], null, null);
+        assertStats(1, 0, 4);
+    }
+
+    /**
+     * Tests {@link TomatilloProvider}'s applyBatch method with inserts and an update that refers
+     * back to one of the inserted rows.
+     */
+    public void testApplyBatch() throws Exception {
+        ContentValues[] values = createDummyDataArray();
+        ArrayList<ContentProviderOperation> operations = new ArrayList<ContentProviderOperation>();
+        for (ContentValues value : values) {
+            operations.add(ContentProviderOperation.newInsert(Movie.CONTENT_URI)
+                    .withValues(value)
+                    .build());
+        }
+        ContentValues valuesUpdated = new ContentValues();
+        valuesUpdated.put(Movie.RATING, 2);
+        // Changes the rating of the first movie inserted by the batch.
+        operations.add(ContentProviderOperation.newUpdate(Movie.CONTENT_URI)
+                .withValues(valuesUpdated)
+                .withSelection(Movie._ID + " = ?", new String[1])
+                .withSelectionBackReference(0, 0)
+                .build());
+
+        ContentProviderResult[] results = mContext.getContentResolver().applyBatch(
+                TomatilloContract.CONTENT_AUTHORITY, operations);
+
+        assertEquals(operations.size(), results.length);
+        assertResultCount(Movie.CONTENT_URI, values.length);
+        assertEquals(1, results[2].count.intValue());
+        assertCorrectStoredValues(results[0].uri, valuesUpdated);
+        assertCorrectStoredValues(results[1].uri, values[1]);
+    }
+
+    /**
+     * Tests that {@link TomatilloDBHelper} inserts the seed movies when it creates the database,
+     * and only then.
+     */
+    public void testSeedAsset() {
+        String name = "test_seed.db";
+        mContext.deleteDatabase(name);
+        TomatilloDBHelper.Options options = new TomatilloDBHelper.Options();
+        options.seedAsset = "seed_movies.csv";
+        TomatilloDBHelper helper = new TomatilloDBHelper(mContext, name, options);
+        try {
+            SQLiteDatabase db = helper.getWritableDatabase();
+            assertEquals(10, DatabaseUtils.queryNumEntries(db, Movie.TABLE_NAME));
+            assertEquals(5, DatabaseUtils.longForQuery(db, "SELECT " + Movie.RATING + " FROM " +
+                    Movie.TABLE_NAME + " WHERE " + Movie.TITLE + " = ?",
+                    new String[] { "Pan's Labyrinth" }));
+
+            db.delete(Movie.TABLE_NAME, null, null);
+            helper.close();
+            db = helper.getWritableDatabase();
+            assertEquals(0, DatabaseUtils.queryNumEntries(db, Movie.TABLE_NAME));
+        } finally {
+            helper.close();
+            mContext.deleteDatabase(name);
+        }
+    }
+
+    /**
+     * Tests streamed imports in both formats, including lines that have to be skipped and, for
+     * an upsert, a movie that is already in the database.
+     */
+    public void testImport() throws Exception {
+        Uri csvUri = MovieImport.buildImportUri("test_csv", MovieImport.FORMAT_CSV, false);
+        writeImport(csvUri, "# comment\n5,Oldboy\n1,Ponyo\n\nnot a movie\n9,Akira\n" +
+                "4,City of God, Rio\n5,Oldboy\n");
+        assertImport(csvUri, 6, 3, 0, 3);
+        assertResultCount(Movie.CONTENT_URI, 3);
+
+        Uri jsonUri = MovieImport.buildImportUri("test_ndjson", MovieImport.FORMAT_NDJSON, true);
+        writeImport(jsonUri, "{\"title\": \"Ponyo\", \"rating\": 3}\n" +
+                "{\"title\": \"Akira\", \"rating\": 4}\n{\"title\": \"Frozen\"}\n");
+        assertImport(jsonUri, 3, 1, 1, 1);
+        assertResultCount(Movie.CONTENT_URI, 4);
+        assertResultCount(Movie.CONTENT_URI, null, Movie.TITLE + " = ? AND " + Movie.RATING +
+                " = ?", new String[] { "Ponyo", "3" }, 1);
+    }
+
+    /**
+     * Tests that the binary export returns every movie, in _ID order.
+     */
+    public void testExport() throws Exception {
+        ContentValues[] values = createDummyDataArray();
+        Uri[] uris = insertDummyData(values);
+
+        MovieExportReader reader = MovieExportReader.open(mContext.getContentResolver());
+        try {
+            for (int i = 0; i < values.length; i++) {
+                assertTrue(reader.next());
+                assertEquals(ContentUris.parseId(uris[i]), reader.getId());
+                assertEquals(values[i].getAsString(Movie.TITLE), reader.getTitle());
+                assertEquals(values[i].getAsInteger(Movie.RATING).intValue(), reader.getRating());
+            }
+            assertFalse(reader.next());
+        } finally {
+            reader.close();
+        }
+    }
+
+    /**
+     * Tests that the provider counts calls and rows, and that the metrics can be reset.
+     */
+    public void testMetrics() {
+        ContentResolver resolver = mContext.getContentResolver();
+        resolver.call(Movie.CONTENT_URI, TomatilloContract.METHOD_METRICS_RESET, null, null);
+
+        insertDummyData(createDummyDataArray());
+        assertResultCount(Movie.CONTENT_URI, 2);
+
+        Bundle metrics = resolver.call(Movie.CONTENT_URI, TomatilloContract.METHOD_METRICS,
+                null, null);
+        Bundle insert = metrics.getBundle("insert");
+        assertEquals(2, insert.getLong(TomatilloContract.EXTRA_COUNT));
+        assertEquals(2, insert.getLong(TomatilloContract.EXTRA_ROWS));
+        long calls = 0;
+        for (long bucket : insert.getLongArray(TomatilloContract.EXTRA_LATENCY_HISTOGRAM)) {
+            calls += bucket;
+        }
+        assertEquals(2, calls);
+        Bundle query = metrics.getBundle("query");
+        assertEquals(1, query.getLong(TomatilloContract.EXTRA_COUNT));
+        assertEquals(2, query.getLong(TomatilloContract.EXTRA_ROWS));
+        assertNotNull(metrics.getStringArrayList(TomatilloContract.EXTRA_SLOW_CALLS));
+
+        resolver.call(Movie.CONTENT_URI, TomatilloContract.METHOD_METRICS_RESET, null, null);
+        metrics = resolver.call(Movie.CONTENT_URI, TomatilloContract.METHOD_METRICS, null, null);
+        assertEquals(0, metrics.getBundle("insert").getLong(TomatilloContract.EXTRA_COUNT));
+    }
+
+    /**
+     * Tests that the rows of a query are counted once the caller reads the cursor, not while
+     * the provider is still answering the query.
+     */
+    public void testMetricsCountQueryRowsWhenRead() {
+        insertDummyData(createDummyDataArray());
+        TomatilloProvider provider = createProvider();
+
+        Cursor cursor = provider.query(Movie.CONTENT_URI, null, null, null, null);
+        try {
+            Bundle query = provider.call(TomatilloContract.METHOD_METRICS, null, null)
+                    .getBundle("query");
+            assertEquals(1, query.getLong(TomatilloContract.EXTRA_COUNT));
+            assertEquals(0, query.getLong(TomatilloContract.EXTRA_ROWS));
+
+            assertTrue(cursor.moveToFirst());
+            assertEquals(2, cursor.getCount());
+            query = provider.call(TomatilloContract.METHOD_METRICS, null, null)
+                    .getBundle("query");
+            assertEquals(2, query.getLong(TomatilloContract.EXTRA_ROWS));
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Tests the update_ratings provider method, including that a bad rating stops the whole
+     * update.
+     */
+    public void testUpdateRatings() {
+        Uri[] uris = insertDummyData(createDummyDataArray());
+        long[] ids = new long[] { ContentUris.parseId(uris[0]), ContentUris.parseId(uris[1]),
+                ContentUris.parseId(uris[1]) + 1000 };
+
+        Bundle extras = new Bundle();
+        extras.putLongArray(TomatilloContract.EXTRA_IDS, ids);
+        extras.putIntArray(TomatilloContract.EXTRA_RATINGS, new int[] { 1, 2, 3 });
+        Bundle result = mContext.getContentResolver().call(Movie.CONTENT_URI,
+                TomatilloContract.METHOD_UPDATE_RATINGS, null, extras);
+        assertEquals(2, result.getInt(TomatilloContract.EXTRA_UPDATED));
+        assertCorrectStoredValues(uris[0], createDummyDataOneMovie("Pulp Fiction", 1));
+        assertCorrectStoredValues(uris[1], createDummyDataOneMovie("Forrest Gump", 2));
+
+        extras.putIntArray(TomatilloContract.EXTRA_RATINGS, new int[] { 4, 6, 4 });
+        try {
+            mContext.getContentResolver().call(Movie.CONTENT_URI,
+                    TomatilloContract.METHOD_UPDATE_RATINGS, null, extras);
+            fail("Rating 6 should throw IllegalArgumentException");
+        } catch (IllegalArgumentException e) {
+            // This is the expected case.
+        }
+        assertCorrectStoredValues(uris[0], createDummyDataOneMovie("Pulp Fiction", 1));
+    }
+
+    /**
+     * Tests the update_ids and delete_ids provider methods with more _IDs than fit in one
+     * statement, one of which is not in the database.
+     */
+    public void testUpdateAndDeleteIds() {
+        // More movies than fit in one IN list.
+        ContentResolver resolver = mContext.getContentResolver();
+        ContentValues[] values = new ContentValues[2500];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = createDummyDataOneMovie("Chunked " + i, 5);
+        }
+        assertEquals(values.length, resolver.bulkInsert(Movie.CONTENT_URI, values));
+        Cursor cursor = resolver.query(Movie.CONTENT_URI, new String[] { Movie._ID },
+                Movie.TITLE + " LIKE 'Chunked %'", null, null);
+        long[] ids = new long[cursor.getCount() + 1];
+        for (int i = 0; cursor.moveToNext(); i++) {
+            ids[i] = cursor.getLong(0);
+        }
+        cursor.close();
+        // One _ID that is not there.
+        ids[ids.length - 1] = ids[ids.length - 2] + 1000;
+
+        Bundle extras = new Bundle();
+        extras.putLongArray(TomatilloContract.EXTRA_IDS, ids);
+        ContentValues rating = new ContentValues();
+        rating.put(Movie.RATING, 1);
+        extras.putParcelable(TomatilloContract.EXTRA_VALUE, rating);
+        Bundle result = resolver.call(Movie.CONTENT_URI, TomatilloContract.METHOD_UPDATE_IDS,
+                null, extras);
+        assertEquals(values.length, result.getInt(TomatilloContract.EXTRA_UPDATED));
+        assertResultCount(Movie.CONTENT_URI, null, Movie.RATING + " = 1 AND " + Movie.TITLE +
+                " LIKE 'Chunked %'", null, values.length);
+
+        result = resolver.call(Movie.CONTENT_URI, TomatilloContract.METHOD_DELETE_IDS, null,
+                extras);
+        assertEquals(values.length, result.getInt(TomatilloContract.EXTRA_DELETED));
+        assertResultCount(Movie.CONTENT_URI, null, Movie.TITLE + " LIKE 'Chunked %'", null, 0);
+    }
+
+    /**
+     * Tests the movie/changes Uri: a reset followed by every movie when starting from 0, then
+     * each changed movie once with its latest change, including a tombstone for a deleted one.
+     */
+    public void testChanges() {
+        ContentResolver resolver = mContext.getContentResolver();
+        Cursor cursor = resolver.query(Movie.CONTENT_URI, null, null, null, null);
+        int movies = cursor.getCount();
+        cursor.close();
+
+        // Starting from scratch gives a reset and then every movie.
+        cursor = resolver.query(MovieChanges.buildChangesUri(0), null, null, null, null);
+        assertEquals(movies + 1, cursor.getCount());
+        assertTrue(cursor.moveToFirst());
+        assertEquals(MovieChanges.OP_RESET,
+                cursor.getInt(cursor.getColumnIndex(MovieChanges.OP)));
+        assertTrue(cursor.moveToLast());
+        long since = cursor.getLong(cursor.getColumnIndex(MovieChanges.SEQ));
+        cursor.close();
+
+        Uri kept = resolver.insert(Movie.CONTENT_URI, createDummyDataOneMovie("Pulp Fiction", 5));
+        Uri deleted = resolver.insert(Movie.CONTENT_URI,
+                createDummyDataOneMovie("Forrest Gump", 4));
+        ContentValues rating = new ContentValues();
+        rating.put(Movie.RATING, 2);
+        resolver.update(kept, rating, null, null);
+        resolver.delete(deleted, null, null);
+
+        // Each movie comes back once, with its latest change.
+        cursor = resolver.query(MovieChanges.buildChangesUri(since), null, null, null, null);
+        assertEquals(2, cursor.getCount());
+        assertTrue(cursor.moveToFirst());
+        assertEquals(ContentUris.parseId(kept),
+                cursor.getLong(cursor.getColumnIndex(MovieChanges._ID)));
+        assertEquals(MovieChanges.OP_UPDATE,
+                cursor.getInt(cursor.getColumnIndex(MovieChanges.OP)));
+        assertEquals(2, cursor.getInt(cursor.getColumnIndex(MovieChanges.RATING)));
+        assertTrue(cursor.moveToNext());
+        assertEquals(ContentUris.parseId(deleted),
+                cursor.getLong(cursor.getColumnIndex(MovieChanges._ID)));
+        assertEquals(MovieChanges.OP_DELETE,
+                cursor.getInt(cursor.getColumnIndex(MovieChanges.OP)));
+        assertTrue(cursor.isNull(cursor.getColumnIndex(MovieChanges.TITLE)));
+        since = cursor.getLong(cursor.getColumnIndex(MovieChanges.SEQ));
+        cursor.close();
+
+        assertResultCount(MovieChanges.buildChangesUri(since), 0);
+    }
+
+    /**
+     * Tests the movie/changes Uri when starting from 0 with no movies left in the table but
+     * tombstones in the log.
+     */
+    public void testChangesFromEmptyTable() {
+        // Leaves tombstones in the log and no movies in the table.
+        ContentResolver resolver = mContext.getContentResolver();
+        Uri[] uris = insertDummyData(createDummyDataArray());
+        for (Uri uri : uris) {
+            resolver.delete(uri, null, null);
+        }
+
+        // Starting from scratch gives only the reset, which carries the latest change, so none of
+        // the tombstones before it come back later.
+        Cursor cursor = resolver.query(MovieChanges.buildChangesUri(0), null, null, null, null);
+        assertEquals(1, cursor.getCount());
+        assertTrue(cursor.moveToFirst());
+        assertEquals(MovieChanges.OP_RESET,
+                cursor.getInt(cursor.getColumnIndex(MovieChanges.OP)));
+        long since = cursor.getLong(cursor.getColumnIndex(MovieChanges.SEQ));
+        cursor.close();
+        assertResultCount(MovieChanges.buildChangesUri(since), 0);
+
+        Uri inserted = resolver.insert(Movie.CONTENT_URI,
+                createDummyDataOneMovie("Pulp Fiction", 5));
+        cursor = resolver.query(MovieChanges.buildChangesUri(since), null, null, null, null);
+        assertEquals(1, cursor.getCount());
+        assertTrue(cursor.moveToFirst());
+        assertEquals(ContentUris.parseId(inserted),
+                cursor.getLong(cursor.getColumnIndex(MovieChanges._ID)));
+        assertEquals(MovieChanges.OP_INSERT,
+                cursor.getInt(cursor.getColumnIndex(MovieChanges.OP)));
+        cursor.close();
+    }
+
+    /**
+     * Tests that the upsert provider method throws IllegalArgumentException when it is called
+     * without extras.
+     */
+    public void testUpsertWithoutExtras() {
+        assertCallThrows(TomatilloContract.METHOD_UPSERT);
+    }
+
+    /**
+     * Tests that the update_ratings provider method throws IllegalArgumentException when it is
+     * called without extras.
+     */
+    public void testUpdateRatingsWithoutExtras() {
+        assertCallThrows(TomatilloContract.METHOD_UPDATE_RATINGS);
+    }
+
+    /**
+     * Tests that the delete_ids and update_ids provider methods throw IllegalArgumentException
+     * when they are called without extras.
+     */
+    public void testDeleteAndUpdateIdsWithoutExtras() {
+        assertCallThrows(TomatilloContract.METHOD_DELETE_IDS);
+        assertCallThrows(TomatilloContract.METHOD_UPDATE_IDS);
+    }
+
+    /**
+     * Tests that the query cache answers a repeated query from memory, with the same values a
+     * SQLite cursor reads, including a title read as a number.
+     */
+    public void testQueryCacheHit() {
+        insertDummyData(new ContentValues[] {
+                createDummyDataOneMovie("Pulp Fiction", 5),
+                createDummyDataOneMovie("12 Angry Men", 4) });
+        TomatilloProvider provider = createProvider(R.integer.provider_query_cache_size, 65536);
+
+        assertSameResult(provider, Movie.CONTENT_URI, null);
+        assertCacheStats(provider, 0, 1);
+        assertSameResult(provider, Movie.CONTENT_URI, null);
+        assertCacheStats(provider, 1, 1);
+        assertSameResult(provider, Movie.CONTENT_URI, new String[] { Movie.TITLE });
+        assertCacheStats(provider, 1, 2);
+    }
+
+    /**
+     * Tests that every kind of write invalidates the query cache, so the next query reads the
+     * database again and sees the write.
+     */
+    public void testQueryCacheInvalidation() throws Exception {
+        Uri[] uris = insertDummyData(createDummyDataArray());
+        TomatilloProvider provider = createProvider(R.integer.provider_query_cache_size, 65536);
+        assertSameResult(provider, Movie.CONTENT_URI, null);
+
+        provider.insert(Movie.CONTENT_URI, createDummyDataOneMovie("12 Angry Men", 3));
+        assertSameResult(provider, Movie.CONTENT_URI, null);
+        assertCacheStats(provider, 0, 2);
+
+        ContentValues rating = new ContentValues();
+        rating.put(Movie.RATING, 1);
+        provider.update(uris[0], rating, null, null);
+        assertSameResult(provider, Movie.CONTENT_URI, null);
+        assertCacheStats(provider, 0, 3);
+
+        provider.delete(uris[1], null, null);
+        assertSameResult(provider, Movie.CONTENT_URI, null);
+        assertCacheStats(provider, 0, 4);
+
+        ArrayList<ContentProviderOperation> operations =
+                new ArrayList<ContentProviderOperation>();
+        operations.add(ContentProviderOperation.newInsert(Movie.CONTENT_URI)
+                .withValues(createDummyDataOneMovie("Forrest Gump", 4))
+                .build());
+        provider.applyBatch(operations);
+        assertSameResult(provider, Movie.CONTENT_URI, null);
+        assertCacheStats(provider, 0, 5);
+
+        Bundle extras = new Bundle();
+        extras.putLongArray(TomatilloContract.EXTRA_IDS,
+                new long[] { ContentUris.parseId(uris[0]) });
+        extras.putIntArray(TomatilloContract.EXTRA_RATINGS, new int[] { 2 });
+        provider.call(TomatilloContract.METHOD_UPDATE_RATINGS, null, extras);
+        assertSameResult(provider, Movie.CONTENT_URI, null);
+        assertCacheStats(provider, 0, 6);
+    }
+
+    /**
+     * Tests that the query cache evicts the least recently used result once it is full.
+     */
+    public void testQueryCacheEviction() {
+        ContentValues[] values = new ContentValues[10];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = createDummyDataOneMovie("Movie " + i, 3);
+        }
+        Uri[] uris = insertDummyData(values);
+        TomatilloProvider provider = createProvider(R.integer.provider_query_cache_size, 1000);
+
+        // Every result is one row of the same size, so the cache holds a fixed number of them.
+        assertSameResult(provider, uris[0], null);
+        int capacity = 1000 / getCacheStats(provider).getInt(TomatilloContract.EXTRA_SIZE);
+        assertTrue("Capacity " + capacity, capacity >= 2 && capacity < uris.length);
+        for (int i = 1; i < capacity; i++) {
+            assertSameResult(provider, uris[i], null);
+        }
+        assertEquals(capacity, getCacheStats(provider).getInt(TomatilloContract.EXTRA_ENTRIES));
+        assertCacheStats(provider, 0, capacity);
+
+        // Using the first result makes the second the least recently used, which makes room for
+        // the next one.
+        assertSameResult(provider, uris[0], null);
+        assertSameResult(provider, uris[capacity], null);
+        assertEquals(capacity, getCacheStats(provider).getInt(TomatilloContract.EXTRA_ENTRIES));
+        assertCacheStats(provider, 1, capacity + 1);
+        assertSameResult(provider, uris[0], null);
+        assertCacheStats(provider, 2, capacity + 1);
+        assertSameResult(provider, uris[1], null);
+        assertCacheStats(provider, 2, capacity + 2);
+    }
+
+    /**
+     * Tests that a result too big for the query cache is passed through without being cached.
+     */
+    public void testQueryCacheSkipsLargeResults() {
+        ContentValues[] values = new ContentValues[10];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = createDummyDataOneMovie("Movie " + i, 3);
+        }
+        insertDummyData(values);
+        TomatilloProvider provider = createProvider(R.integer.provider_query_cache_size, 1000);
+
+        assertSameResult(provider, Movie.CONTENT_URI, null);
+        assertSameResult(provider, Movie.CONTENT_URI, null);
+        assertCacheStats(provider, 0, 2);
+        assertEquals(0, getCacheStats(provider).getInt(TomatilloContract.EXTRA_ENTRIES));
+    }
+
+    /**
+     * Tests that the movie table mirror returns what SQLite does for every query it serves, and
+     * that queries it cannot serve still work.
+     */
+    public void testMirrorMatchesDatabase() {
+        Uri[] uris = insertDummyData(new ContentValues[] {
+                createDummyDataOneMovie("Pulp Fiction", 5),
+                createDummyDataOneMovie("12 Angry Men", 4),
+                createDummyDataOneMovie("3.5 Stars", 3) });
+        TomatilloProvider provider = createProvider(R.integer.provider_mirror_size, 1 << 20);
+
+        ArrayList<Uri> movies = new ArrayList<Uri>(Arrays.asList(uris));
+        movies.add(ContentUris.withAppendedId(Movie.CONTENT_URI,
+                ContentUris.parseId(uris[2]) + 1000));
+        assertMirrorMatches(provider, movies);
+        assertSameResult(provider, Movie.CONTENT_URI, new String[] { "COUNT(*)" });
+    }
+
+    /**
+     * Tests that the movie table mirror stays in step with the database after every kind of
+     * write.
+     */
+    public void testMirrorFollowsWrites() throws Exception {
+        ArrayList<Uri> movies = new ArrayList<Uri>(
+                Arrays.asList(insertDummyData(createDummyDataArray())));
+        TomatilloProvider provider = createProvider(R.integer.provider_mirror_size, 1 << 20);
+        assertMirrorMatches(provider, movies);
+
+        Uri inserted = provider.insert(Movie.CONTENT_URI,
+                createDummyDataOneMovie("12 Angry Men", 3));
+        movies.add(inserted);
+        assertMirrorMatches(provider, movies);
+
+        // A new rating for one movie, which is applied to the mirror rather than reloading it.
+        ContentValues values = new ContentValues();
+        values.put(Movie.RATING, 1);
+        assertEquals(1, provider.update(movies.get(0), values, null, null));
+        assertMirrorMatches(provider, movies);
+
+        values = new ContentValues();
+        values.put(Movie.TITLE, "Forrest Gump 2");
+        assertEquals(1, provider.update(movies.get(1), values, null, null));
+        assertMirrorMatches(provider, movies);
+
+        values = new ContentValues();
+        values.put(Movie.RATING, 5);
+        assertEquals(2, provider.update(Movie.CONTENT_URI, values, Movie.RATING + " < ?",
+                new String[] { "4" }));
+        assertMirrorMatches(provider, movies);
+
+        assertEquals(2, provider.bulkInsert(Movie.CONTENT_URI, new ContentValues[] {
+                createDummyDataOneMovie("Ponyo", 4), createDummyDataOneMovie("Oldboy", 2) }));
+        assertMirrorMatches(provider, movies);
+
+        ArrayList<ContentProviderOperation> operations =
+                new ArrayList<ContentProviderOperation>();
+        operations.add(ContentProviderOperation.newUpdate(movies.get(0))
+                .withValue(Movie.RATING, 3)
+                .build());
+        operations.add(ContentProviderOperation.newDelete(inserted).build());
+        provider.applyBatch(operations);
+        assertMirrorMatches(provider, movies);
+
+        Bundle extras = new Bundle();
+        extras.putLongArray(TomatilloContract.EXTRA_IDS,
+                new long[] { ContentUris.parseId(movies.get(1)) });
+        extras.putIntArray(TomatilloContract.EXTRA_RATINGS, new int[] { 2 });
+        provider.call(TomatilloContract.METHOD_UPDATE_RATINGS, null, extras);
+        assertMirrorMatches(provider, movies);
+
+        extras = new Bundle();
+        extras.putParcelableArray(TomatilloContract.EXTRA_VALUES, new ContentValues[] {
+                createDummyDataOneMovie("Ponyo", 1), createDummyDataOneMovie("Amelie", 5) });
+        provider.call(TomatilloContract.METHOD_UPSERT, null, extras);
+        assertMirrorMatches(provider, movies);
+
+        assertEquals(1, provider.delete(movies.get(1), null, null));
+        assertMirrorMatches(provider, movies);
+
+        assertEquals(1, provider.delete(Movie.CONTENT_URI, Movie.TITLE + " = ?",
+                new String[] { "Oldboy" }));
+        assertMirrorMatches(provider, movies);
+    }
+
+    /**
+     * Tests that the movie table mirror ends up with the rating that was committed last when
+     * ratings for the same movie are written from several threads while others read, and so
+     * reload, the mirror.
+     */
+    public void testMirrorConcurrentRatings() throws Exception {
+        final Uri[] uris = insertDummyData(createDummyDataArray());
+        final TomatilloProvider provider =
+                createProvider(R.integer.provider_mirror_size, 1 << 20);
+        final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+        final AtomicInteger writersLeft = new AtomicInteger(2);
+
+        Thread[] threads = new Thread[4];
+        for (int t = 0; t < threads.length; t++) {
+            final int thread = t;
+            threads[t] = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        if (thread < 2) {
+                            write();
+                        } else {
+                            read();
+                        }
+                    } catch (Throwable e) {
+                        failure.compareAndSet(null, e);
+                    }
+                }
+
+                private void write() {
+                    ContentValues values = new ContentValues();
+                    for (int i = 0; i < 200; i++) {
+                        values.put(Movie.RATING, 1 + (i + thread) % 5);
+                        provider.update(uris[0], values, null, null);
+                    }
+                    writersLeft.decrementAndGet();
+                }
+
+                private void read() {
+                    while (writersLeft.get() > 0) {
+                        Cursor cursor = provider.query(thread == 2 ? Movie.CONTENT_URI :
+                                uris[0], null, null, null, null);
+                        while (cursor.moveToNext()) {
+                            cursor.getInt(cursor.getColumnIndex(Movie.RATING));
+                        }
+                        cursor.close();
+                    }
+                }
+            };
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertNull(failure.get());
+        assertSameResult(provider, uris[0], null);
+        assertSameResult(provider, Movie.CONTENT_URI, null);
+    }
+
+    /**
+     * Tests that the movie table mirror falls back to SQLite while the table is over budget, and
+     * is used again once a write has made the table small enough.
+     */
+    public void testMirrorFallsBackOverBudget() {
+        ContentValues[] values = new ContentValues[10];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = createDummyDataOneMovie("Movie " + i, 3);
+        }
+        Uri[] uris = insertDummyData(values);
+        // Each of these movies takes about 27 bytes in the mirror: 13 for its _ID, rating and
+        // title start, and two for each character of its title.
+        TomatilloProvider provider = createProvider(R.integer.provider_mirror_size, 200);
+
+        // Writes made through the app's provider do not reach the test's provider, so whether a
+        // read sees one tells whether it came from SQLite or from the mirror.
+        ContentValues rating = new ContentValues();
+        assertSameResult(provider, Movie.CONTENT_URI, null);
+        rating.put(Movie.RATING, 1);
+        mContext.getContentResolver().update(uris[0], rating, null, null);
+        assertSameResult(provider, Movie.CONTENT_URI, null);
+        assertSameResult(provider, uris[0], null);
+
+        for (int i = 6; i < uris.length; i++) {
+            assertEquals(1, provider.delete(uris[i], null, null));
+        }
+        assertSameResult(provider, Movie.CONTENT_URI, null);
+        rating.put(Movie.RATING, 2);
+        mContext.getContentResolver().update(uris[0], rating, null, null);
+        Cursor cursor = provider.query(uris[0], new String[] { Movie.RATING }, null, null, null);
+        try {
+            assertTrue(cursor.moveToFirst());
+            assertEquals(1, cursor.getInt(0));
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Tests that a write to a single movie notifies only that movie's Uri, which observers of
+     * the whole table hear about through notifyForDescendants.
+     */
+    public void testNotifyRow() throws Exception {
+        Uri[] uris = insertDummyData(createDummyDataArray());
+        CountingObserver first = registerObserver(uris[0], false);
+        CountingObserver second = registerObserver(uris[1], false);
+        CountingObserver table = registerObserver(Movie.CONTENT_URI, false);
+        CountingObserver all = registerObserver(Movie.CONTENT_URI, true);
+
+        ContentValues rating = new ContentValues();
+        rating.put(Movie.RATING, 1);
+        mContext.getContentResolver().update(uris[0], rating, null, null);
+        assertNotified(first, 1);
+        assertEquals(1, all.getCount());
+        assertEquals(0, second.getCount());
+        assertEquals(0, table.getCount());
+    }
+
+    /**
+     * Tests that the writes of a batch to several movies are merged into one notification for
+     * the whole table.
+     */
+    public void testNotifyBatch() throws Exception {
+        Uri[] uris = insertDummyData(createDummyDataArray());
+        CountingObserver first = registerObserver(uris[0], false);
+        CountingObserver second = registerObserver(uris[1], false);
+        CountingObserver table = registerObserver(Movie.CONTENT_URI, false);
+        CountingObserver all = registerObserver(Movie.CONTENT_URI, true);
+
+        ArrayList<ContentProviderOperation> operations =
+                new ArrayList<ContentProviderOperation>();
+        for (Uri uri : uris) {
+            operations.add(ContentProviderOperation.newUpdate(uri)
+                    .withValue(Movie.RATING, 1)
+                    .build());
+        }
+        mContext.getContentResolver().applyBatch(TomatilloContract.CONTENT_AUTHORITY, operations);
+        assertNotified(table, 1);
+        assertEquals(1, all.getCount());
+        assertEquals(1, first.getCount());
+        assertEquals(1, second.getCount());
+    }
+
+    /**
+     * Tests that with provider_notification_delay set, writes within the delay of each other are
+     * merged into one notification, and a write after it is notified on its own.
+     */
+    public void testNotifyDelay() throws Exception {
+        Uri[] uris = insertDummyData(createDummyDataArray());
+        TomatilloProvider provider = createProvider(R.integer.provider_notification_delay, 500);
+        CountingObserver first = registerObserver(uris[0], false);
+        CountingObserver second = registerObserver(uris[1], false);
+        CountingObserver table = registerObserver(Movie.CONTENT_URI, false);
+        CountingObserver all = registerObserver(Movie.CONTENT_URI, true);
+
+        ContentValues rating = new ContentValues();
+        for (int i = 1; i <= 3; i++) {
+            rating.put(Movie.RATING, i);
+            provider.update(uris[i % 2], rating, null, null);
+        }
+        assertNotified(table, 1);
+        assertEquals(1, all.getCount());
+        assertEquals(1, first.getCount());
+        assertEquals(1, second.getCount());
+
+        provider.update(uris[1], rating, null, null);
+        assertNotified(second, 2);
+        assertEquals(2, all.getCount());
+        assertEquals(1, first.getCount());
+        assertEquals(1, table.getCount());
+    }
+
+    /**
+     * Tests that deleting every movie notifies observers of the table even if it was empty.
+     */
+    public void testNotifyDeleteAllFromEmptyTable() throws Exception {
+        CountingObserver table = registerObserver(Movie.CONTENT_URI, false);
+        assertEquals(0, mContext.getContentResolver().delete(Movie.CONTENT_URI, null, null));
+        assertNotified(table, 1);
+    }
+
     /**
      * Helper Methods are below
      */
 
+    /**
+     * Counts the change notifications an observer is sent. They arrive on a binder thread.
+     */
+    private static class CountingObserver extends ContentObserver {
+        private final AtomicInteger mCount = new AtomicInteger();
+
+        CountingObserver() {
+            super(null);
+        }
+
+        @Override
+        public void onChange(boolean selfChange) {
+            mCount.incrementAndGet();
+        }
+
+        int getCount() {
+            return mCount.get();
+        }
+    }
+
+    /**
+     * Registers an observer of the uri for the rest of the test.
+     */
+    private CountingObserver registerObserver(Uri uri, boolean notifyForDescendants) {
+        CountingObserver observer = new CountingObserver();
+        mContext.getContentResolver().registerContentObserver(uri, notifyForDescendants,
+                observer);
+        mObservers.add(observer);
+        return observer;
+    }
+
+    /**
+     * Waits for the observer to have been sent the expected number of notifications, and then a
+     * little longer, to check that no more follow.
+     */
+    private void assertNotified(CountingObserver observer, int expectedCount) throws Exception {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (observer.getCount() < expectedCount && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        Thread.sleep(300);
+        assertEquals(expectedCount, observer.getCount());
+    }
+
+    /**
+     * Creates a provider of the test's own, with the integer resources given as pairs of resource
+     * id and value replaced. It shares the database with the app's provider, but keeps its own
+     * caches, so the test calls it directly rather than through the content resolver.
+     */
+    private TomatilloProvider createProvider(int... config) {
+        final Map<Integer, Integer> overrides = new HashMap<Integer, Integer>();
+        for (int i = 0; i < config.length; i += 2) {
+            overrides.put(config[i], config[i + 1]);
+        }
+        TomatilloProvider provider = new TomatilloProvider() {
+            @Override
+            protected int getConfigInteger(int id) {
+                Integer value = overrides.get(id);
+                return value != null ? value : super.getConfigInteger(id);
+            }
+        };
+        provider.attachInfo(mContext, null);
+        mProviders.add(provider);
+        return provider;
+    }
+
+    /**
+     * Checks that the provider returns the same rows for the query as the app's provider, which
+     * reads them straight from SQLite, whichever way each value is read.
+     */
+    private void assertSameResult(TomatilloProvider provider, Uri uri, String[] projection) {
+        Cursor expected = mContext.getContentResolver().query(uri, projection, null, null, null);
+        Cursor actual = provider.query(uri, projection, null, null, null);
+        try {
+            assertEquals(expected.getCount(), actual.getCount());
+            assertEquals(expected.getColumnCount(), actual.getColumnCount());
+            for (int column = 0; column < expected.getColumnCount(); column++) {
+                assertEquals(expected.getColumnName(column), actual.getColumnName(column));
+            }
+            while (expected.moveToNext()) {
+                assertTrue(actual.moveToNext());
+                for (int column = 0; column < expected.getColumnCount(); column++) {
+                    assertEquals(expected.getString(column), actual.getString(column));
+                    assertEquals(expected.getLong(column), actual.getLong(column));
+                    assertEquals(expected.getInt(column), actual.getInt(column));
+                    assertEquals(expected.getDouble(column), actual.getDouble(column), 0);
+                    assertEquals(expected.isNull(column), actual.isNull(column));
+                }
+            }
+            assertFalse(actual.moveToNext());
+        } finally {
+            expected.close();
+            actual.close();
+        }
+    }
+
+    /**
+     * Checks that the provider returns what SQLite does for the queries the movie table mirror
+     * serves: the whole table, with the columns in and out of their order, its first rows, and
+     * each of the movies, some of which may no longer be there.
+     */
+    private void assertMirrorMatches(TomatilloProvider provider, ArrayList<Uri> movies) {
+        assertSameResult(provider, Movie.CONTENT_URI, null);
+        assertSameResult(provider, Movie.CONTENT_URI, new String[] { Movie.RATING, Movie._ID });
+        assertSameResult(provider, Movie.CONTENT_URI,
+                new String[] { Movie.TITLE, Movie.TITLE });
+        assertSameResult(provider, Movie.CONTENT_URI.buildUpon()
+                .appendQueryParameter(Movie.QUERY_PARAMETER_LIMIT, "2").build(), null);
+        for (Uri movie : movies) {
+            assertSameResult(provider, movie, null);
+            assertSameResult(provider, movie, new String[] { Movie.TITLE });
+        }
+    }
+
+    /**
+     * Returns the statistics of the provider's query cache.
+     */
+    private Bundle getCacheStats(TomatilloProvider provider) {
+        return provider.call(TomatilloContract.METHOD_QUERY_CACHE_STATS, null, null);
+    }
+
+    /**
+     * Checks the number of hits and misses of the provider's query cache so far.
+     */
+    private void assertCacheStats(TomatilloProvider provider, long hits, long misses) {
+        Bundle stats = getCacheStats(provider);
+        assertEquals("Hits", hits, stats.getLong(TomatilloContract.EXTRA_HITS));
+        assertEquals("Misses", misses, stats.getLong(TomatilloContract.EXTRA_MISSES));
+    }
+
+    /**
+     * Checks that calling the provider method with no extras throws IllegalArgumentException.
+     */
+    private void assertCallThrows(String method) {
+        try {
+            mContext.getContentResolver().call(Movie.CONTENT_URI, method, null, null);
+            fail(method + " without extras should throw IllegalArgumentException");
+        } catch (IllegalArgumentException e) {
+            // This is the expected case.
+        }
+    }
+
+    /**
+     * Writes the text to the import Uri and closes it, which ends the import.
+     */
+    private void writeImport(Uri uri, String text) throws Exception {
+        ParcelFileDescriptor fd = mContext.getContentResolver().openFileDescriptor(uri, "w");
+        OutputStream out = new ParcelFileDescriptor.AutoCloseOutputStream(fd);
+        try {
+            out.write(text.getBytes("UTF-8"));
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Waits for the import to end and checks that it succeeded with the given counts.
+     */
+    private void assertImport(Uri uri, int rowsRead, int inserted, int updated, int skipped)
+            throws Exception {
+        long deadline = System.currentTimeMillis() + 10000;
+        while (true) {
+            Cursor cursor = mContext.getContentResolver().query(uri, null, null, null, null);
+            try {
+                assertTrue(cursor.moveToFirst());
+                String status = cursor.getString(cursor.getColumnIndex(MovieImport.STATUS));
+                if (!MovieImport.STATUS_RUNNING.equals(status)) {
+                    assertEquals(MovieImport.STATUS_DONE, status);
+                    assertEquals(rowsRead,
+                            cursor.getInt(cursor.getColumnIndex(MovieImport.ROWS_READ)));
+                    assertEquals(inserted,
+                            cursor.getInt(cursor.getColumnIndex(MovieImport.INSERTED)));
+                    assertEquals(updated,
+                            cursor.getInt(cursor.getColumnIndex(MovieImport.UPDATED)));
+                    assertEquals(skipped,
+                            cursor.getInt(cursor.getColumnIndex(MovieImport.SKIPPED)));
+                    return;
+                }
+            } finally {
+                cursor.close();
+            }
+            assertTrue("Import did not finish: " + uri, System.currentTimeMillis() < deadline);
+            Thread.sleep(20);
+        }
+    }
+
     /**
      * Helper method to delete all of the record in the database.
      */
@@ -401,6 +1503,29 @@ public class ApplicationTest extends ApplicationTestCase<Application> {
         assertResultCount(uri, null, null, null, expectedCount);
     }
 
+    /**
+     * Helper method to check the movie statistics. The average is only checked if there are
+     * movies.
+     */
+    private void assertStats(int count, int ratedOne, double average) {
+        Cursor cursor = mContext.getContentResolver().query(MovieStats.CONTENT_URI,
+                new String[] {
+                        MovieStats.COUNT, MovieStats.ratingCountColumn(1),
+                        MovieStats.AVERAGE_RATING },
+                null, null, null);
+        try {
+            assertEquals(1, cursor.getCount());
+            cursor.moveToFirst();
+            assertEquals(count, cursor.getInt(0));
+            assertEquals(ratedOne, cursor.getInt(1));
+            if (count > 0) {
+                assertEquals(average, cursor.getDouble(2), 1e-9);
+            }
+        } finally {
+            cursor.close();
+        }
+    }
+
     /**
      * Helper method to test whether the object stored at the URI has the same values as the
      * ContentValues passed as a parameter.
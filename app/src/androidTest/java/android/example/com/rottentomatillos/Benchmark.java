@@ -0,0 +1,136 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package android.example.com.rottentomatillos;
+
+import android.os.Debug;
+
+/**
+ * A small JMH-style harness for timing an operation on the device. Each measurement runs a
+ * time-bounded warmup phase followed by a time-bounded measurement phase, and reports the
+ * throughput in operations per second along with the number of objects and bytes allocated
+ * per operation on the calling thread.
+ */
+final class Benchmark {
+
+    /**
+     * Default length of the warmup phase, in nanoseconds.
+     */
+    static final long DEFAULT_WARMUP_NANOS = 500L * 1000 * 1000;
+
+    /**
+     * Default length of the measurement phase, in nanoseconds.
+     */
+    static final long DEFAULT_MEASURE_NANOS = 2000L * 1000 * 1000;
+
+    /**
+     * The operation being measured. The iteration number is passed in so that operations can
+     * pick different rows or generate unique titles without keeping their own counters.
+     */
+    interface Op {
+        void run(int iteration);
+    }
+
+    /**
+     * The outcome of one measurement.
+     */
+    static final class Result {
+        final String name;
+        final int tableSize;
+        final int operations;
+        final long elapsedNanos;
+        final long allocatedObjects;
+        final long allocatedBytes;
+
+        Result(String name, int tableSize, int operations, long elapsedNanos,
+               long allocatedObjects, long allocatedBytes) {
+            this.name = name;
+            this.tableSize = tableSize;
+            this.operations = operations;
+            this.elapsedNanos = elapsedNanos;
+            this.allocatedObjects = allocatedObjects;
+            this.allocatedBytes = allocatedBytes;
+        }
+
+        double opsPerSecond() {
+            return operations * 1e9 / Math.max(1, elapsedNanos);
+        }
+
+        double objectsPerOp() {
+            return (double) allocatedObjects / Math.max(1, operations);
+        }
+
+        double bytesPerOp() {
+            return (double) allocatedBytes / Math.max(1, operations);
+        }
+
+        @Override
+        public String toString() {
+            return String.format(
+                    "%-24s rows=%-8d ops=%-7d %12.1f ops/s %10.1f allocs/op %12.1f B/op",
+                    name, tableSize, operations, opsPerSecond(), objectsPerOp(), bytesPerOp());
+        }
+    }
+
+    private Benchmark() {
+    }
+
+    /**
+     * Measures an operation with the default warmup and measurement lengths.
+     */
+    static Result measure(String name, int tableSize, int maxIterations, Op op) {
+        return measure(name, tableSize, maxIterations, DEFAULT_WARMUP_NANOS,
+                DEFAULT_MEASURE_NANOS, op);
+    }
+
+    /**
+     * Runs the operation until the warmup time has passed, then runs it again until the
+     * measurement time has passed or maxIterations operations have been measured. The
+     * operation always runs at least once in each phase, so slow operations on big tables still
+     * produce a number. Warmup iterations count towards maxIterations, which lets operations
+     * that consume a fixed pool of rows (such as deletes) bound themselves.
+     */
+    static Result measure(String name, int tableSize, int maxIterations, long warmupNanos,
+                          long measureNanos, Op op) {
+        int iteration = 0;
+
+        // Warmup, so that statement caches, the JIT and the page cache are all primed.
+        long warmupEnd = System.nanoTime() + warmupNanos;
+        while (iteration < maxIterations / 2
+                && (iteration == 0 || System.nanoTime() < warmupEnd)) {
+            op.run(iteration++);
+        }
+
+        // Measurement
+        int measured = 0;
+        Debug.startAllocCounting();
+        Debug.resetThreadAllocCount();
+        Debug.resetThreadAllocSize();
+        long start = System.nanoTime();
+        long measureEnd = start + measureNanos;
+        long now = start;
+        while (iteration < maxIterations && (measured == 0 || now < measureEnd)) {
+            op.run(iteration++);
+            measured++;
+            now = System.nanoTime();
+        }
+        long elapsed = now - start;
+        long objects = Debug.getThreadAllocCount();
+        long bytes = Debug.getThreadAllocSize();
+        Debug.stopAllocCounting();
+
+        return new Result(name, tableSize, measured, elapsed, objects, bytes);
+    }
+}
@@ -0,0 +1,261 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package android.example.com.rottentomatillos;
+
+import android.database.Cursor;
+import android.example.com.rottentomatillos.data.CatalogSyncer;
+import android.example.com.rottentomatillos.data.TomatilloContract.Movie;
+import android.test.AndroidTestCase;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Tests {@link CatalogSyncer} against a stub HTTP server on a local port, which serves a catalog
+ * of three pages.
+ */
+public class CatalogSyncerTest extends AndroidTestCase {
+    private static final String SELECTION = Movie.TITLE + " LIKE 'Synced %'";
+
+    private StubServer mServer;
+    private CatalogSyncer mSyncer;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mServer = new StubServer();
+        for (int page = 0; page < 3; page++) {
+            mServer.setPage(page, "[{\"title\": \"Synced " + (2 * page) + "\", \"rating\": 3}, " +
+                    "{\"title\": \"Synced " + (2 * page + 1) + "\", \"rating\": 4}]");
+        }
+        new Thread(mServer).start();
+
+        mSyncer = new CatalogSyncer(getContext(),
+                "http://127.0.0.1:" + mServer.getPort() + "/catalog");
+        mSyncer.setBackoff(10, 3);
+        mSyncer.forgetValidators();
+        deleteSyncedMovies();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mServer.close();
+        mSyncer.forgetValidators();
+        deleteSyncedMovies();
+        super.tearDown();
+    }
+
+    public void testSync() throws Exception {
+        CatalogSyncer.Result result = mSyncer.sync();
+        assertEquals(3, result.getPagesChanged());
+        assertEquals(6, result.getMovies());
+        assertEquals(0, result.getPagesFailed());
+        assertSyncedMovies(6);
+    }
+
+    public void testUnchangedPagesAreNotModified() throws Exception {
+        mSyncer.sync();
+        deleteSyncedMovies();
+
+        // Every page answers 304, so nothing is written.
+        CatalogSyncer.Result result = mSyncer.sync();
+        assertEquals(0, result.getPagesChanged());
+        assertEquals(3, result.getPagesNotModified());
+        assertSyncedMovies(0);
+
+        // Only the page that changed is applied.
+        mServer.setPage(1, "[{\"title\": \"Synced 2\", \"rating\": 1}]");
+        result = mSyncer.sync();
+        assertEquals(1, result.getPagesChanged());
+        assertEquals(2, result.getPagesNotModified());
+        assertSyncedMovies(1);
+    }
+
+    public void testRetriesServerErrors() throws Exception {
+        mServer.failNextRequests(2);
+        CatalogSyncer.Result result = mSyncer.sync();
+        assertEquals(3, result.getPagesChanged());
+        assertSyncedMovies(6);
+    }
+
+    public void testGivesUpAfterMaxAttempts() throws Exception {
+        mServer.failNextRequests(1000);
+        CatalogSyncer.Result result = mSyncer.sync();
+        assertEquals(0, result.getPagesChanged());
+        assertTrue(result.getPagesFailed() > 0);
+        assertSyncedMovies(0);
+    }
+
+    public void testStopsAtFailedPage() throws Exception {
+        for (int page = 3; page < 5; page++) {
+            mServer.setPage(page, "[{\"title\": \"Synced " + (2 * page) + "\", \"rating\": 3}]");
+        }
+        mServer.setStatus(2, "400 Bad Request");
+        // One page at a time, so that no page after the failed one is under way when it fails.
+        mSyncer.setParallelism(1);
+
+        // The pages before the failed one are kept, and those after it are never fetched.
+        CatalogSyncer.Result result = mSyncer.sync();
+        assertEquals(2, result.getPagesChanged());
+        assertEquals(1, result.getPagesFailed());
+        assertSyncedMovies(4);
+        assertFalse(mServer.wasRequested(3));
+    }
+
+    private void deleteSyncedMovies() {
+        getContext().getContentResolver().delete(Movie.CONTENT_URI, SELECTION, null);
+    }
+
+    private void assertSyncedMovies(int expectedCount) {
+        Cursor cursor = getContext().getContentResolver().query(Movie.CONTENT_URI, null,
+                SELECTION, null, null);
+        assertEquals(expectedCount, cursor.getCount());
+        cursor.close();
+    }
+
+    /**
+     * Serves the pages of the catalog, one request per connection. Every page has an ETag
+     * derived from its body and answers 304 to a request that already has it. Pages that were
+     * not set are 404s, and pages given a status answer with it. Requests made while failures
+     * are pending get a 503.
+     */
+    private static class StubServer implements Runnable {
+        private final ServerSocket mSocket =
+                new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+        private final Map<String, String> mPages = new HashMap<String, String>();
+        private final Map<String, String> mStatuses = new HashMap<String, String>();
+        private final Set<String> mRequested = new HashSet<String>();
+        private final AtomicInteger mFailures = new AtomicInteger();
+
+        StubServer() throws IOException {
+        }
+
+        int getPort() {
+            return mSocket.getLocalPort();
+        }
+
+        synchronized void setPage(int page, String body) {
+            mPages.put("/catalog?page=" + page, body);
+        }
+
+        synchronized void setStatus(int page, String status) {
+            mStatuses.put("/catalog?page=" + page, status);
+        }
+
+        synchronized boolean wasRequested(int page) {
+            return mRequested.contains("/catalog?page=" + page);
+        }
+
+        void failNextRequests(int count) {
+            mFailures.set(count);
+        }
+
+        void close() throws IOException {
+            mSocket.close();
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (true) {
+                    final Socket socket = mSocket.accept();
+                    new Thread(new Runnable() {
+                        @Override
+                        public void run() {
+                            serve(socket);
+                        }
+                    }).start();
+                }
+            } catch (IOException e) {
+                // Closed.
+            }
+        }
+
+        private void serve(Socket socket) {
+            try {
+                BufferedReader in = new BufferedReader(
+                        new InputStreamReader(socket.getInputStream(), "UTF-8"));
+                String path = in.readLine().split(" ")[1];
+                String ifNoneMatch = null;
+                String line;
+                while ((line = in.readLine()) != null && line.length() > 0) {
+                    int colon = line.indexOf(':');
+                    if (line.substring(0, colon).equalsIgnoreCase("If-None-Match")) {
+                        ifNoneMatch = line.substring(colon + 1).trim();
+                    }
+                }
+
+                String body;
+                String status;
+                synchronized (this) {
+                    body = mPages.get(path);
+                    status = mStatuses.get(path);
+                    mRequested.add(path);
+                }
+                String etag = body != null ? "\"" + Integer.toHexString(body.hashCode()) + "\"" :
+                        null;
+                if (mFailures.getAndDecrement() > 0) {
+                    respond(socket, "503 Service Unavailable", null, "");
+                } else if (status != null) {
+                    respond(socket, status, null, "");
+                } else if (body == null) {
+                    respond(socket, "404 Not Found", null, "");
+                } else if (etag.equals(ifNoneMatch)) {
+                    respond(socket, "304 Not Modified", etag, null);
+                } else {
+                    respond(socket, "200 OK", etag, body);
+                }
+            } catch (IOException e) {
+                // The client went away.
+            } finally {
+                try {
+                    socket.close();
+                } catch (IOException e) {
+                    // Nothing left to do with it.
+                }
+            }
+        }
+
+        private static void respond(Socket socket, String status, String etag, String body)
+                throws IOException {
+            StringBuilder response = new StringBuilder("HTTP/1.1 ").append(status).append("\r\n");
+            response.append("Connection: close\r\n");
+            if (etag != null) {
+                response.append("ETag: ").append(etag).append("\r\n");
+            }
+            byte[] content = body != null ? body.getBytes("UTF-8") : new byte[0];
+            if (body != null) {
+                response.append("Content-Type: application/json\r\n");
+                response.append("Content-Length: ").append(content.length).append("\r\n");
+            }
+            response.append("\r\n");
+            OutputStream out = socket.getOutputStream();
+            out.write(response.toString().getBytes("UTF-8"));
+            out.write(content);
+            out.flush();
+        }
+    }
+}
@@ -0,0 +1,99 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package android.example.com.rottentomatillos;
+
+import android.content.ContentResolver;
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.example.com.rottentomatillos.data.TomatilloContract.Movie;
+import android.test.ActivityInstrumentationTestCase2;
+import android.test.UiThreadTest;
+import android.widget.ListView;
+
+/**
+ * Tests for {@link MainActivity}.
+ */
+public class MainActivityTest extends ActivityInstrumentationTestCase2<MainActivity> {
+    private static final String TITLE = "Rated Before Pausing";
+
+    private long mId;
+    private ListView mListView;
+
+    public MainActivityTest() {
+        super(MainActivity.class);
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        // A list of one movie.
+        ContentResolver resolver = getInstrumentation().getTargetContext().getContentResolver();
+        resolver.delete(Movie.CONTENT_URI, null, null);
+        ContentValues values = new ContentValues();
+        values.put(Movie.TITLE, TITLE);
+        values.put(Movie.RATING, 1);
+        mId = ContentUris.parseId(resolver.insert(Movie.CONTENT_URI, values));
+
+        mListView = (ListView) getActivity().findViewById(R.id.tomatillo_list_view);
+        long deadline = System.currentTimeMillis() + 5000;
+        while (mListView.getChildCount() == 0) {
+            assertTrue("The list was not loaded", System.currentTimeMillis() < deadline);
+            Thread.sleep(20);
+        }
+        getInstrumentation().waitForIdleSync();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        getInstrumentation().getTargetContext().getContentResolver()
+                .delete(Movie.CONTENT_URI, null, null);
+        super.tearDown();
+    }
+
+    /**
+     * Tests that a rating the user sets is written when the activity pauses, without waiting for
+     * the write window to close. The test holds the UI thread throughout, so the window cannot
+     * close on its own.
+     */
+    @UiThreadTest
+    public void testFlushesRatingsOnPause() throws Exception {
+        assertEquals(mId, mListView.getItemIdAtPosition(0));
+        RatingAdapter.ViewHolder holder =
+                (RatingAdapter.ViewHolder) mListView.getChildAt(0).getTag();
+        holder.ratingListener.onRatingChanged(holder.ratingBar, 4, true);
+
+        getInstrumentation().callActivityOnPause(getActivity());
+
+        long deadline = System.currentTimeMillis() + 5000;
+        while (queryRating() != 4) {
+            assertTrue("The rating was not written", System.currentTimeMillis() < deadline);
+            Thread.sleep(20);
+        }
+    }
+
+    private int queryRating() {
+        Cursor cursor = getActivity().getContentResolver().query(
+                ContentUris.withAppendedId(Movie.CONTENT_URI, mId),
+                new String[] { Movie.RATING }, null, null, null);
+        try {
+            assertTrue(cursor.moveToFirst());
+            return cursor.getInt(0);
+        } finally {
+            cursor.close();
+        }
+    }
+}
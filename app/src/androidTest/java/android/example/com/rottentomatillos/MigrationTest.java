@@ -0,0 +1,129 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package android.example.com.rottentomatillos;
+
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.example.com.rottentomatillos.data.TomatilloContract.Movie;
+import android.example.com.rottentomatillos.data.TomatilloDBHelper;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.util.Log;
+
+/**
+ * Tests that {@link TomatilloDBHelper} upgrades a database from the first version to the current
+ * one without losing any movies, and reports how long that takes. Each test builds a version 1
+ * database of its own, so the app's database is left alone.
+ */
+public class MigrationTest extends AndroidTestCase {
+    private static final String LOG_TAG = MigrationTest.class.getSimpleName();
+
+    private static final String DATABASE_NAME = "migration_test.db";
+
+    @Override
+    protected void tearDown() throws Exception {
+        getContext().deleteDatabase(DATABASE_NAME);
+        super.tearDown();
+    }
+
+    public void testMigrateFromVersion1() {
+        migrate(1000);
+    }
+
+    @LargeTest
+    public void testMigrateFromVersion1With1M() {
+        migrate(1000 * 1000);
+    }
+
+    /**
+     * Builds a version 1 database with the given number of movies, upgrades it and checks that
+     * every movie made it, along with the full-text index, the statistics, the indexes and the
+     * change log.
+     */
+    private void migrate(int movies) {
+        createVersion1Database(movies);
+
+        TomatilloDBHelper helper = new TomatilloDBHelper(getContext(), DATABASE_NAME,
+                new TomatilloDBHelper.Options());
+        try {
+            long start = System.currentTimeMillis();
+            SQLiteDatabase db = helper.getWritableDatabase();
+            long millis = System.currentTimeMillis() - start;
+            Log.i(LOG_TAG, "Migrated " + movies + " movies from version 1 to " +
+                    db.getVersion() + " in " + millis + " ms");
+
+            assertEquals(movies, DatabaseUtils.queryNumEntries(db, Movie.TABLE_NAME));
+            assertEquals(1, DatabaseUtils.longForQuery(db,
+                    "SELECT COUNT(*) FROM movie_fts WHERE movie_fts MATCH ?",
+                    new String[] { "title" + (movies - 1) }));
+            assertEquals(movies / 5, DatabaseUtils.longForQuery(db,
+                    "SELECT count FROM movie_stats WHERE rating = 1", null));
+            assertEquals(2, DatabaseUtils.longForQuery(db, "SELECT COUNT(*) FROM sqlite_master " +
+                    "WHERE type = 'index' AND name IN ('movie_rating_index', 'movie_title_index')",
+                    null));
+
+            // The rebuilt table keeps the _IDs and hands out new ones after the highest.
+            assertEquals(3, DatabaseUtils.longForQuery(db, "SELECT " + Movie.RATING + " FROM " +
+                    Movie.TABLE_NAME + " WHERE " + Movie._ID + " = 3", null));
+            db.execSQL("DELETE FROM " + Movie.TABLE_NAME + " WHERE " + Movie._ID + " = " +
+                    movies);
+            db.execSQL("INSERT INTO " + Movie.TABLE_NAME + " (" + Movie.TITLE + ", " +
+                    Movie.RATING + ") VALUES ('new', 1)");
+            assertEquals(movies + 1, DatabaseUtils.longForQuery(db,
+                    "SELECT MAX(" + Movie._ID + ") FROM " + Movie.TABLE_NAME, null));
+
+            // The change log starts with a reset and logs changes to the rebuilt table.
+            assertEquals(3, DatabaseUtils.queryNumEntries(db, "movie_changes"));
+        } finally {
+            helper.close();
+        }
+    }
+
+    /**
+     * Creates the database with the schema of version 1 and fills it with movies whose _IDs run
+     * from 1 and whose ratings cycle from 1 to 5.
+     */
+    private void createVersion1Database(int movies) {
+        getContext().deleteDatabase(DATABASE_NAME);
+        SQLiteDatabase db = getContext().openOrCreateDatabase(DATABASE_NAME, 0, null);
+        try {
+            db.execSQL("CREATE TABLE " + Movie.TABLE_NAME + " (" +
+                    Movie._ID + " INTEGER PRIMARY KEY," +
+                    Movie.TITLE + " TEXT UNIQUE NOT NULL, " +
+                    Movie.RATING + " INTEGER NOT NULL );");
+            db.beginTransaction();
+            SQLiteStatement insert = db.compileStatement("INSERT INTO " + Movie.TABLE_NAME +
+                    " (" + Movie._ID + ", " + Movie.TITLE + ", " + Movie.RATING +
+                    ") VALUES (?, ?, ?)");
+            try {
+                for (int i = 1; i <= movies; i++) {
+                    insert.bindLong(1, i);
+                    insert.bindString(2, "Migration title" + i);
+                    insert.bindLong(3, (i - 1) % 5 + 1);
+                    insert.executeInsert();
+                }
+                db.setTransactionSuccessful();
+            } finally {
+                insert.close();
+                db.endTransaction();
+            }
+            db.setVersion(1);
+        } finally {
+            db.close();
+        }
+    }
+}
@@ -0,0 +1,388 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package android.example.com.rottentomatillos;
+
+import android.content.ContentResolver;
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.example.com.rottentomatillos.data.MovieExportReader;
+import android.example.com.rottentomatillos.data.TomatilloContract.Movie;
+import android.example.com.rottentomatillos.data.TomatilloDBHelper;
+import android.example.com.rottentomatillos.data.TomatilloProvider;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.util.Log;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Throughput and allocation benchmarks for the CRUD paths of {@link TomatilloProvider}. Each test
+ * fills the movie table to a fixed size and then measures query (MOVIE, MOVIE_WITH_ID and a
+ * top-N query), the binary export, insert, bulkInsert, update and delete against it. Results
+ * are written to logcat under the ProviderBenchmark tag, one line per operation.
+ *
+ * These are large tests, and like {@link ApplicationTest} they run against the app's real
+ * database, so run them on their own:
+ *   adb shell am instrument -w -e class android.example.com.rottentomatillos.ProviderBenchmark \
+ *       android.example.com.rottentomatillos.test/android.test.InstrumentationTestRunner
+ */
+@LargeTest
+public class ProviderBenchmark extends AndroidTestCase {
+    private static final String LOG_TAG = ProviderBenchmark.class.getSimpleName();
+
+    /**
+     * The number of rows handed to each bulkInsert call, both when filling the table and when
+     * measuring bulkInsert itself.
+     */
+    private static final int BULK_BATCH_SIZE = 100;
+
+    /**
+     * The prefix of every title the benchmark writes, so leftovers are easy to spot.
+     */
+    private static final String TITLE_PREFIX = "Benchmark Movie ";
+
+    /**
+     * Table size and write transaction size for the reader latency benchmark.
+     */
+    private static final int READER_TABLE_SIZE = 10 * 1000;
+    private static final int READER_WRITE_SIZE = 200 * 1000;
+
+    private static final String[] PROJECTION = new String[] {
+            Movie._ID, Movie.TITLE, Movie.RATING };
+
+    private ContentResolver mResolver;
+    private final Random mRandom = new Random(42);
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mResolver = getContext().getContentResolver();
+        deleteAllRecords();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        deleteAllRecords();
+        super.tearDown();
+    }
+
+    public void testTableSize10() {
+        runSuite(10);
+    }
+
+    public void testTableSize10k() {
+        runSuite(10 * 1000);
+    }
+
+    public void testTableSize1M() {
+        runSuite(1000 * 1000);
+    }
+
+    /**
+     * Fills the table with tableSize rows and measures every CRUD path against it. Rows written by
+     * the insert and bulkInsert measurements are the ones removed by the delete measurement, so
+     * the table is back to tableSize rows at the end.
+     */
+    private void runSuite(final int tableSize) {
+        fillTable(tableSize);
+        final long firstId = queryFirstId();
+
+        report(Benchmark.measure("query MOVIE", tableSize, Integer.MAX_VALUE,
+                new Benchmark.Op() {
+                    @Override
+                    public void run(int iteration) {
+                        Cursor cursor = mResolver.query(
+                                Movie.CONTENT_URI, PROJECTION, null, null, null);
+                        try {
+                            consume(cursor);
+                        } finally {
+                            cursor.close();
+                        }
+                    }
+                }));
+
+        report(Benchmark.measure("query top 50 by rating", tableSize, Integer.MAX_VALUE,
+                new Benchmark.Op() {
+                    @Override
+                    public void run(int iteration) {
+                        Cursor cursor = mResolver.query(
+                                Movie.buildTopRatedUri(50), PROJECTION, null, null, null);
+                        try {
+                            consume(cursor);
+                        } finally {
+                            cursor.close();
+                        }
+                    }
+                }));
+
+        report(Benchmark.measure("export MOVIE", tableSize, Integer.MAX_VALUE,
+                new Benchmark.Op() {
+                    @Override
+                    public void run(int iteration) {
+                        try {
+                            MovieExportReader reader = MovieExportReader.open(mResolver);
+                            try {
+                                while (reader.next()) {
+                                    reader.getTitle();
+                                }
+                            } finally {
+                                reader.close();
+                            }
+                        } catch (IOException e) {
+                            throw new RuntimeException(e);
+                        }
+                    }
+                }));
+
+        report(Benchmark.measure("query MOVIE_WITH_ID", tableSize, Integer.MAX_VALUE,
+                new Benchmark.Op() {
+                    @Override
+                    public void run(int iteration) {
+                        Cursor cursor = mResolver.query(
+                                ContentUris.withAppendedId(Movie.CONTENT_URI,
+                                        firstId + mRandom.nextInt(tableSize)),
+                                PROJECTION, null, null, null);
+                        try {
+                            consume(cursor);
+                        } finally {
+                            cursor.close();
+                        }
+                    }
+                }));
+
+        report(Benchmark.measure("insert", tableSize, Integer.MAX_VALUE,
+                new Benchmark.Op() {
+                    @Override
+                    public void run(int iteration) {
+                        mResolver.insert(Movie.CONTENT_URI,
+                                createMovie("insert " + iteration, iteration));
+                    }
+                }));
+
+        report(Benchmark.measure("bulkInsert x" + BULK_BATCH_SIZE, tableSize, Integer.MAX_VALUE,
+                new Benchmark.Op() {
+                    @Override
+                    public void run(int iteration) {
+                        ContentValues[] batch = new ContentValues[BULK_BATCH_SIZE];
+                        for (int i = 0; i < batch.length; i++) {
+                            batch[i] = createMovie("bulk " + iteration + "-" + i, i);
+                        }
+                        mResolver.bulkInsert(Movie.CONTENT_URI, batch);
+                    }
+                }));
+
+        report(Benchmark.measure("update MOVIE_WITH_ID", tableSize, Integer.MAX_VALUE,
+                new Benchmark.Op() {
+                    @Override
+                    public void run(int iteration) {
+                        ContentValues values = new ContentValues();
+                        values.put(Movie.RATING, iteration % 5 + 1);
+                        mResolver.update(
+                                ContentUris.withAppendedId(Movie.CONTENT_URI,
+                                        firstId + mRandom.nextInt(tableSize)),
+                                values, null, null);
+                    }
+                }));
+
+        // Delete the rows written by the insert benchmarks, one at a time.
+        final long[] ids = queryIdsAfter(firstId + tableSize - 1);
+        report(Benchmark.measure("delete MOVIE_WITH_ID", tableSize, ids.length,
+                new Benchmark.Op() {
+                    @Override
+                    public void run(int iteration) {
+                        mResolver.delete(
+                                ContentUris.withAppendedId(Movie.CONTENT_URI, ids[iteration]),
+                                null, null);
+                    }
+                }));
+    }
+
+    /**
+     * Measures the latency of point queries issued while another thread holds a large write
+     * transaction open, once with the rollback journal and once with write-ahead logging. With
+     * the rollback journal the reader waits for the whole transaction; with WAL it should not.
+     */
+    public void testReaderLatencyDuringBulkWrite() throws Exception {
+        measureReaderLatency(false);
+        measureReaderLatency(true);
+    }
+
+    private void measureReaderLatency(boolean writeAheadLogging) throws Exception {
+        final String mode = writeAheadLogging ? "wal" : "rollback";
+        final String name = "benchmark_" + mode + ".db";
+        getContext().deleteDatabase(name);
+
+        TomatilloDBHelper.Options options = new TomatilloDBHelper.Options();
+        options.writeAheadLogging = writeAheadLogging;
+        options.synchronous = writeAheadLogging ? "NORMAL" : null;
+        TomatilloDBHelper helper = new TomatilloDBHelper(getContext(), name, options);
+        try {
+            final SQLiteDatabase db = helper.getWritableDatabase();
+            db.beginTransaction();
+            try {
+                insertRows(db, 0, READER_TABLE_SIZE);
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
+
+            final CountDownLatch writerStarted = new CountDownLatch(1);
+            final CountDownLatch writerDone = new CountDownLatch(1);
+            Thread writer = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    db.beginTransaction();
+                    try {
+                        writerStarted.countDown();
+                        insertRows(db, READER_TABLE_SIZE, READER_WRITE_SIZE);
+                        db.setTransactionSuccessful();
+                    } finally {
+                        db.endTransaction();
+                        writerDone.countDown();
+                    }
+                }
+            });
+            writer.start();
+            writerStarted.await();
+
+            long[] latencies = new long[READER_WRITE_SIZE];
+            int reads = 0;
+            while (writerDone.getCount() > 0 && reads < latencies.length) {
+                long start = System.nanoTime();
+                Cursor cursor = db.rawQuery(
+                        "SELECT " + Movie._ID + ", " + Movie.TITLE + ", " + Movie.RATING +
+                                " FROM " + Movie.TABLE_NAME + " WHERE " + Movie._ID + " = ?",
+                        new String[] { String.valueOf(1 + mRandom.nextInt(READER_TABLE_SIZE)) });
+                try {
+                    consume(cursor);
+                } finally {
+                    cursor.close();
+                }
+                latencies[reads++] = System.nanoTime() - start;
+            }
+            writer.join();
+
+            Arrays.sort(latencies, 0, reads);
+            Log.i(LOG_TAG, String.format(
+                    "reader latency (%s) during a %d row write: " +
+                            "reads=%d p50=%.3fms p99=%.3fms max=%.3fms",
+                    mode, READER_WRITE_SIZE, reads,
+                    percentile(latencies, reads, 0.50) / 1e6,
+                    percentile(latencies, reads, 0.99) / 1e6,
+                    latencies[Math.max(0, reads - 1)] / 1e6));
+        } finally {
+            helper.close();
+            getContext().deleteDatabase(name);
+        }
+    }
+
+    /**
+     * Inserts count rows straight into the database, bypassing the provider.
+     */
+    private static void insertRows(SQLiteDatabase db, int first, int count) {
+        SQLiteStatement insert = db.compileStatement(
+                "INSERT INTO " + Movie.TABLE_NAME + " (" + Movie.TITLE + ", " + Movie.RATING +
+                        ") VALUES (?, ?)");
+        try {
+            for (int i = first; i < first + count; i++) {
+                insert.bindString(1, TITLE_PREFIX + i);
+                insert.bindLong(2, i % 5 + 1);
+                insert.executeInsert();
+            }
+        } finally {
+            insert.close();
+        }
+    }
+
+    private static long percentile(long[] sorted, int count, double fraction) {
+        if (count == 0) return 0;
+        return sorted[Math.min(count - 1, (int) (count * fraction))];
+    }
+
+    private void report(Benchmark.Result result) {
+        Log.i(LOG_TAG, result.toString());
+    }
+
+    /**
+     * Reads every column of every row, the way an adapter would.
+     */
+    private static void consume(Cursor cursor) {
+        while (cursor.moveToNext()) {
+            cursor.getLong(0);
+            cursor.getString(1);
+            cursor.getInt(2);
+        }
+    }
+
+    /**
+     * Fills the (empty) movie table with tableSize rows through bulkInsert.
+     */
+    private void fillTable(int tableSize) {
+        int inserted = 0;
+        while (inserted < tableSize) {
+            int batchSize = Math.min(BULK_BATCH_SIZE * 50, tableSize - inserted);
+            ContentValues[] batch = new ContentValues[batchSize];
+            for (int i = 0; i < batchSize; i++) {
+                batch[i] = createMovie("fill " + (inserted + i), inserted + i);
+            }
+            mResolver.bulkInsert(Movie.CONTENT_URI, batch);
+            inserted += batchSize;
+        }
+        Log.i(LOG_TAG, "Filled the movie table with " + tableSize + " rows");
+    }
+
+    private long queryFirstId() {
+        Cursor cursor = mResolver.query(Movie.CONTENT_URI,
+                new String[] { "MIN(" + Movie._ID + ")" }, null, null, null);
+        try {
+            assertTrue(cursor.moveToFirst());
+            return cursor.getLong(0);
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private long[] queryIdsAfter(long id) {
+        Cursor cursor = mResolver.query(Movie.CONTENT_URI, new String[] { Movie._ID },
+                Movie._ID + " > ?", new String[] { String.valueOf(id) }, null);
+        try {
+            long[] ids = new long[cursor.getCount()];
+            for (int i = 0; cursor.moveToNext(); i++) {
+                ids[i] = cursor.getLong(0);
+            }
+            return ids;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private static ContentValues createMovie(String name, int seed) {
+        ContentValues values = new ContentValues();
+        values.put(Movie.TITLE, TITLE_PREFIX + name);
+        values.put(Movie.RATING, seed % 5 + 1);
+        return values;
+    }
+
+    private void deleteAllRecords() {
+        mResolver.delete(Movie.CONTENT_URI, null, null);
+    }
+}
@@ -0,0 +1,117 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package android.example.com.rottentomatillos;
+
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.example.com.rottentomatillos.data.TomatilloContract.Movie;
+import android.os.Debug;
+import android.test.InstrumentationTestCase;
+import android.test.UiThreadTest;
+import android.view.ContextThemeWrapper;
+import android.view.View;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Tests for {@link RatingAdapter}.
+ */
+public class RatingAdapterTest extends InstrumentationTestCase {
+
+    /**
+     * The number of rows bound while allocations are being counted.
+     */
+    private static final int BINDS = 1000;
+
+    private static final String[] TITLES = new String[] {
+            "Eternal Sunshine of the Spotless Mind", "Oldboy", "Ponyo", "Let the Right One In" };
+
+    private static final String SELECTION = Movie.TITLE + " IN (?, ?, ?, ?)";
+
+    private final List<Cursor> mPages = new ArrayList<Cursor>();
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        ContentResolver resolver = getInstrumentation().getTargetContext().getContentResolver();
+        resolver.delete(Movie.CONTENT_URI, SELECTION, TITLES);
+        ContentValues[] values = new ContentValues[TITLES.length];
+        for (int i = 0; i < TITLES.length; i++) {
+            values[i] = new ContentValues();
+            values[i].put(Movie.TITLE, TITLES[i]);
+            values[i].put(Movie.RATING, i + 1);
+        }
+        resolver.bulkInsert(Movie.CONTENT_URI, values);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        for (Cursor page : mPages) {
+            page.close();
+        }
+        getInstrumentation().getTargetContext().getContentResolver()
+                .delete(Movie.CONTENT_URI, SELECTION, TITLES);
+        super.tearDown();
+    }
+
+    /**
+     * Tests that once a view has been bound to every row, binding it again allocates nothing, so
+     * scrolling a long list does not cause garbage collections. The rows are bound through a
+     * {@link PagedCursor} over provider cursors, as they are in MainActivity.
+     */
+    @UiThreadTest
+    public void testBindViewDoesNotAllocate() {
+        Context context = new ContextThemeWrapper(
+                getInstrumentation().getTargetContext(), R.style.AppTheme);
+
+        // Two pages of two movies each.
+        ContentResolver resolver = context.getContentResolver();
+        String[] projection = new String[] { Movie._ID, Movie.TITLE, Movie.RATING };
+        for (int i = 0; i < TITLES.length; i += 2) {
+            Cursor page = resolver.query(Movie.CONTENT_URI, projection,
+                    Movie.TITLE + " IN (?, ?)", new String[] { TITLES[i], TITLES[i + 1] },
+                    null);
+            mPages.add(page);
+        }
+        PagedCursor cursor = new PagedCursor(mPages);
+        assertEquals(TITLES.length, cursor.getCount());
+
+        RatingAdapter adapter = new RatingAdapter(context, null, 0);
+        adapter.swapCursor(cursor);
+        View view = adapter.newView(context, cursor, null);
+
+        // Warm up, which lets the title buffer grow to fit the longest title.
+        for (int i = 0; i < cursor.getCount(); i++) {
+            cursor.moveToPosition(i);
+            adapter.bindView(view, context, cursor);
+        }
+
+        Debug.startAllocCounting();
+        Debug.resetThreadAllocCount();
+        for (int i = 0; i < BINDS; i++) {
+            cursor.moveToPosition(i % cursor.getCount());
+            adapter.bindView(view, context, cursor);
+        }
+        int allocations = Debug.getThreadAllocCount();
+        Debug.stopAllocCounting();
+
+        assertEquals("bindView allocated " + allocations + " objects in " + BINDS + " binds",
+                0, allocations);
+    }
+}
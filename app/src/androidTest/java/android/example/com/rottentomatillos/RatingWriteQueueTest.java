@@ -0,0 +1,196 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package android.example.com.rottentomatillos;
+
+import android.content.ContentResolver;
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.example.com.rottentomatillos.data.RatingWriteQueue;
+import android.example.com.rottentomatillos.data.TomatilloContract.Movie;
+import android.test.AndroidTestCase;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tests {@link RatingWriteQueue} against the app's provider.
+ */
+public class RatingWriteQueueTest extends AndroidTestCase {
+    private static final String SELECTION = Movie.TITLE + " LIKE 'Queued %'";
+
+    /**
+     * A window long enough that it never closes during a test.
+     */
+    private static final long LONG_WINDOW_MILLIS = 60 * 1000;
+
+    private ContentResolver mResolver;
+    private long mFirstId;
+    private long mSecondId;
+
+    // What the listener was told, as one Call per call, in order.
+    private final BlockingQueue<Call> mCalls = new LinkedBlockingQueue<Call>();
+
+    private static final class Call {
+        final boolean written;
+        final long[] ids;
+        final int[] ratings;
+
+        Call(boolean written, long[] ids, int[] ratings) {
+            this.written = written;
+            this.ids = ids;
+            this.ratings = ratings;
+        }
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mResolver = getContext().getContentResolver();
+        mResolver.delete(Movie.CONTENT_URI, SELECTION, null);
+        mFirstId = insertMovie("Queued 1");
+        mSecondId = insertMovie("Queued 2");
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mResolver.delete(Movie.CONTENT_URI, SELECTION, null);
+        super.tearDown();
+    }
+
+    /**
+     * Tests that several ratings for one movie are written as one, the last, and that the
+     * ratings of a window are written in one call.
+     */
+    public void testCoalescesRatings() throws Exception {
+        RatingWriteQueue queue = createQueue(LONG_WINDOW_MILLIS);
+        queue.setRating(mFirstId, 2);
+        queue.setRating(mFirstId, 5);
+        queue.setRating(mSecondId, 3);
+        queue.setRating(mFirstId, 4);
+        queue.flush();
+
+        Call call = takeCall();
+        assertTrue(call.written);
+        assertEquals(2, call.ids.length);
+        assertEquals(mFirstId, call.ids[0]);
+        assertEquals(4, call.ratings[0]);
+        assertEquals(mSecondId, call.ids[1]);
+        assertEquals(3, call.ratings[1]);
+        assertNoMoreCalls();
+        assertEquals(4, queryRating(mFirstId));
+        assertEquals(3, queryRating(mSecondId));
+    }
+
+    /**
+     * Tests that the ratings are written when the window closes, without a flush.
+     */
+    public void testWritesWhenWindowCloses() throws Exception {
+        RatingWriteQueue queue = createQueue(100);
+        queue.setRating(mFirstId, 2);
+        queue.setRating(mFirstId, 3);
+
+        Call call = takeCall();
+        assertTrue(call.written);
+        assertEquals(1, call.ids.length);
+        assertEquals(3, call.ratings[0]);
+        assertNoMoreCalls();
+        assertEquals(3, queryRating(mFirstId));
+    }
+
+    /**
+     * Tests that flushing writes the ratings straight away, which is what the activity does when
+     * it pauses, and that there is nothing left to write when the window would have closed.
+     */
+    public void testFlushWritesBeforeWindowCloses() throws Exception {
+        RatingWriteQueue queue = createQueue(500);
+        queue.setRating(mFirstId, 5);
+        queue.flush();
+
+        Call call = takeCall();
+        assertTrue(call.written);
+        assertEquals(5, queryRating(mFirstId));
+        // Waits out the window.
+        Thread.sleep(700);
+        assertNoMoreCalls();
+    }
+
+    /**
+     * Tests that a write the provider rejects is reported to the listener instead of crashing
+     * the write thread, and that the queue goes on writing after it.
+     */
+    public void testReportsFailedWrites() throws Exception {
+        RatingWriteQueue queue = createQueue(LONG_WINDOW_MILLIS);
+        queue.setRating(mFirstId, 6);
+        queue.flush();
+
+        Call call = takeCall();
+        assertFalse(call.written);
+        assertEquals(mFirstId, call.ids[0]);
+        assertEquals(6, call.ratings[0]);
+        assertEquals(1, queryRating(mFirstId));
+
+        queue.setRating(mFirstId, 2);
+        queue.flush();
+        assertTrue(takeCall().written);
+        assertEquals(2, queryRating(mFirstId));
+    }
+
+    private RatingWriteQueue createQueue(long windowMillis) {
+        RatingWriteQueue queue = new RatingWriteQueue(mResolver, windowMillis);
+        queue.setListener(new RatingWriteQueue.Listener() {
+            @Override
+            public void onRatingsWritten(long[] ids, int[] ratings) {
+                mCalls.add(new Call(true, ids, ratings));
+            }
+
+            @Override
+            public void onRatingsFailed(long[] ids, int[] ratings) {
+                mCalls.add(new Call(false, ids, ratings));
+            }
+        });
+        return queue;
+    }
+
+    private Call takeCall() throws InterruptedException {
+        Call call = mCalls.poll(5, TimeUnit.SECONDS);
+        assertNotNull("The listener was not called", call);
+        return call;
+    }
+
+    private void assertNoMoreCalls() throws InterruptedException {
+        assertNull(mCalls.poll(300, TimeUnit.MILLISECONDS));
+    }
+
+    private long insertMovie(String title) {
+        ContentValues values = new ContentValues();
+        values.put(Movie.TITLE, title);
+        values.put(Movie.RATING, 1);
+        return ContentUris.parseId(mResolver.insert(Movie.CONTENT_URI, values));
+    }
+
+    private int queryRating(long id) {
+        Cursor cursor = mResolver.query(ContentUris.withAppendedId(Movie.CONTENT_URI, id),
+                new String[] { Movie.RATING }, null, null, null);
+        try {
+            assertTrue(cursor.moveToFirst());
+            return cursor.getInt(0);
+        } finally {
+            cursor.close();
+        }
+    }
+}
@@ -15,7 +15,6 @@
  */
 package android.example.com.rottentomatillos;
 
-import android.content.ContentValues;
 import android.database.Cursor;
 import android.example.com.rottentomatillos.data.TomatilloContract.Movie;
 import android.os.Bundle;
@@ -23,77 +22,115 @@ import android.support.v4.app.LoaderManager;
 import android.support.v4.content.CursorLoader;
 import android.support.v4.content.Loader;
 import android.support.v7.app.ActionBarActivity;
+import android.widget.AbsListView;
 import android.widget.ListView;
 
+import java.util.ArrayList;
+
 /**
- * This is the main activity for the RottenTomatillos App.
+ * This is the main activity for the RottenTomatillos App. Movies are loaded a page at a time, and
+ * the next page is loaded as the user scrolls towards the end of the list.
  */
 public class MainActivity extends ActionBarActivity implements LoaderManager.LoaderCallbacks<Cursor> {
     public static final String LOG_TAG = MainActivity.class.getSimpleName();
 
-    // Identifies a particular Loader being used in this component.
+    // Identifies a particular Loader being used in this component. Page n of the movie list is
+    // loaded by the loader with id CURSOR_LOADER_ID + n.
     private static final int CURSOR_LOADER_ID = 0;
 
+    // The number of movies loaded at a time.
+    private static final int PAGE_SIZE = 50;
+
+    // Loader argument holding the _id of the last movie on the previous page.
+    private static final String ARG_AFTER_ID = "after_id";
+
     private RatingAdapter mAdapter;
 
+    // The pages of the movie list, in order. A page is null while it is loading.
+    private final ArrayList<Cursor> mPages = new ArrayList<Cursor>();
+
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
         setContentView(R.layout.activity_main);
-        insertData();
 
         // Get the ListView which will be populated with the TomatilloProvider data.
         ListView listView = (ListView) findViewById(R.id.tomatillo_list_view);
 
         // Note that the cursor is null because data will be loaded in via a loader
-        mAdapter = new RatingAdapter(this, null, 0, CURSOR_LOADER_ID);
+        mAdapter = new RatingAdapter(this, null, 0);
 
         // Attach the adapter to the ListView.
         listView.setAdapter(mAdapter);
 
-        // Initializes the loader.
+        // Load the next page once the user scrolls within half a page of the end of the list.
+        listView.setOnScrollListener(new AbsListView.OnScrollListener() {
+            @Override
+            public void onScrollStateChanged(AbsListView view, int scrollState) {
+            }
+
+            @Override
+            public void onScroll(AbsListView view, int firstVisibleItem, int visibleItemCount,
+                                 int totalItemCount) {
+                if (firstVisibleItem + visibleItemCount >= totalItemCount - PAGE_SIZE / 2) {
+                    loadNextPage();
+                }
+            }
+        });
+
+        // Initializes the loader for the first page.
+        mPages.add(null);
         getSupportLoaderManager().initLoader(CURSOR_LOADER_ID, null, this);
     }
 
+    @Override
+    protected void onPause() {
+        super.onPause();
+        // Don't leave ratings waiting in the queue while the app may be killed.
+        mAdapter.flushRatings();
+    }
+
     /**
-     * Inserts dummy data into the movie rating database.
-     * To keep the code simple for this toy app we are inserting the data here.
-     * Normally this should be done on a separate thread, using {@link android.os.AsyncTask}
-     * or similar method.
+     * Starts loading the page after the last one, unless it is already loading or the last page
+     * reached the end of the table.
      */
-    private void insertData() {
-        // Create the values for 10 movies and insert them in the database
-        String[] titles = new String[] {
-                "Eternal Sunshine of the Spotless Mind",
-                "Oldboy",
-                "Ponyo",
-                "Frozen",
-                "Let the Right One In",
-                "Amelie",
-                "Pan's Labyrinth",
-                "City of God",
-                "Akira",
-                "Some Like It Hot"};
-        int[] ratings = new int[]{5,5,1,2,3,5,5,4,3,4};
-        ContentValues[] ratingsArr = new ContentValues[ratings.length];
-
-        // Go through the arrays and make all of the movies, finally insert into the database.
-        for (int i = 0; i < titles.length; i++) {
-            ratingsArr[i] = new ContentValues();
-            ratingsArr[i].put(Movie.TITLE, titles[i]);
-            ratingsArr[i].put(Movie.RATING, ratings[i]);
+    private void loadNextPage() {
+        Cursor lastPage = mPages.get(mPages.size() - 1);
+        if (lastPage == null || lastPage.getCount() < PAGE_SIZE) return;
+
+        Bundle args = new Bundle();
+        args.putLong(ARG_AFTER_ID, getLastId(lastPage));
+        mPages.add(null);
+        getSupportLoaderManager().initLoader(CURSOR_LOADER_ID + mPages.size() - 1, args, this);
+    }
+
+    /**
+     * Shows the pages that have been loaded so far, up to the first one that is still loading.
+     */
+    private void updateAdapterCursor() {
+        ArrayList<Cursor> loaded = new ArrayList<Cursor>();
+        for (Cursor page : mPages) {
+            if (page == null) break;
+            loaded.add(page);
         }
+        // Closing a PagedCursor leaves the pages open for their loaders.
+        Cursor old = mAdapter.swapCursor(loaded.isEmpty() ? null : new PagedCursor(loaded));
+        if (old != null) old.close();
+    }
 
-        getContentResolver().bulkInsert(Movie.CONTENT_URI, ratingsArr);
+    private static long getLastId(Cursor page) {
+        page.moveToLast();
+        return page.getLong(page.getColumnIndex(Movie._ID));
     }
 
     @Override
     public Loader<Cursor> onCreateLoader(int id, Bundle args) {
         // When the LoaderManager initalizes the loader, this code is run. A CursorLoader is
         // specifically designed to load cursors from ContentProviders.
+        long afterId = args != null ? args.getLong(ARG_AFTER_ID, -1) : -1;
         return new CursorLoader(
                 this,
-                Movie.CONTENT_URI,
+                Movie.buildPageUri(PAGE_SIZE, afterId),
                 null,
                 null,
                 null,
@@ -103,7 +140,28 @@ public class MainActivity extends ActionBarActivity implements LoaderManager.Loa
 
     @Override
     public void onLoadFinished(Loader<Cursor> loader, Cursor data) {
-        mAdapter.changeCursor(data);
+        int page = loader.getId() - CURSOR_LOADER_ID;
+        mPages.set(page, data);
+
+        if (data.getCount() < PAGE_SIZE) {
+            // This page reaches the end of the table, so any pages after it are gone.
+            for (int i = mPages.size() - 1; i > page; i--) {
+                getSupportLoaderManager().destroyLoader(CURSOR_LOADER_ID + i);
+                mPages.remove(i);
+            }
+        } else if (page + 1 < mPages.size()) {
+            // If this page now ends on a different movie, the next page has to start after it.
+            long lastId = getLastId(data);
+            CursorLoader next = (CursorLoader) getSupportLoaderManager().<Cursor>getLoader(
+                    CURSOR_LOADER_ID + page + 1);
+            String nextAfterId = next.getUri().getQueryParameter(Movie.QUERY_PARAMETER_AFTER_ID);
+            if (!String.valueOf(lastId).equals(nextAfterId)) {
+                Bundle args = new Bundle();
+                args.putLong(ARG_AFTER_ID, lastId);
+                getSupportLoaderManager().restartLoader(CURSOR_LOADER_ID + page + 1, args, this);
+            }
+        }
+        updateAdapterCursor();
     }
 
     @Override
@@ -111,6 +169,10 @@ public class MainActivity extends ActionBarActivity implements LoaderManager.Loa
         // This method is meant to clean up a previous loader's data.
         // For a CursorAdapter, you need to clear the adapter's reference to the Cursor.
         // This prevents memory leaks.
-        mAdapter.changeCursor(null);
+        int page = loader.getId() - CURSOR_LOADER_ID;
+        if (page < mPages.size()) {
+            mPages.set(page, null);
+        }
+        updateAdapterCursor();
     }
 }
\ No newline at end of file
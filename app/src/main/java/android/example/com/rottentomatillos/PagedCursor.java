@@ -0,0 +1,129 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package android.example.com.rottentomatillos;
+
+import android.database.AbstractCursor;
+import android.database.CharArrayBuffer;
+import android.database.Cursor;
+
+import java.util.List;
+
+/**
+ * A read-only cursor that shows a list of pages, each loaded into its own cursor, as one long
+ * list of rows. Unlike {@link android.database.MergeCursor}, closing it does not close the pages,
+ * because each page belongs to the loader that loaded it.
+ */
+class PagedCursor extends AbstractCursor {
+    private final Cursor[] mPages;
+
+    /**
+     * The position of the first row of each page.
+     */
+    private final int[] mPageStarts;
+
+    private final int mCount;
+    private Cursor mCurrentPage;
+
+    /**
+     * Creates a cursor over the given pages, which must all have the same columns.
+     */
+    PagedCursor(List<Cursor> pages) {
+        mPages = pages.toArray(new Cursor[pages.size()]);
+        mPageStarts = new int[mPages.length];
+        int count = 0;
+        for (int i = 0; i < mPages.length; i++) {
+            mPageStarts[i] = count;
+            count += mPages[i].getCount();
+        }
+        mCount = count;
+    }
+
+    @Override
+    public int getCount() {
+        return mCount;
+    }
+
+    @Override
+    public boolean onMove(int oldPosition, int newPosition) {
+        // Searching from the end skips over empty pages, which start where the next page does.
+        for (int i = mPages.length - 1; i >= 0; i--) {
+            if (newPosition >= mPageStarts[i]) {
+                mCurrentPage = mPages[i];
+                return mCurrentPage.moveToPosition(newPosition - mPageStarts[i]);
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public String[] getColumnNames() {
+        return mPages.length > 0 ? mPages[0].getColumnNames() : new String[0];
+    }
+
+    @Override
+    public String getString(int column) {
+        return mCurrentPage.getString(column);
+    }
+
+    /**
+     * Copies straight from the page, which for a window-backed page does not allocate, rather
+     * than through {@link #getString(int)} the way AbstractCursor does.
+     */
+    @Override
+    public void copyStringToBuffer(int column, CharArrayBuffer buffer) {
+        mCurrentPage.copyStringToBuffer(column, buffer);
+    }
+
+    @Override
+    public byte[] getBlob(int column) {
+        return mCurrentPage.getBlob(column);
+    }
+
+    @Override
+    public int getType(int column) {
+        return mCurrentPage.getType(column);
+    }
+
+    @Override
+    public short getShort(int column) {
+        return mCurrentPage.getShort(column);
+    }
+
+    @Override
+    public int getInt(int column) {
+        return mCurrentPage.getInt(column);
+    }
+
+    @Override
+    public long getLong(int column) {
+        return mCurrentPage.getLong(column);
+    }
+
+    @Override
+    public float getFloat(int column) {
+        return mCurrentPage.getFloat(column);
+    }
+
+    @Override
+    public double getDouble(int column) {
+        return mCurrentPage.getDouble(column);
+    }
+
+    @Override
+    public boolean isNull(int column) {
+        return mCurrentPage.isNull(column);
+    }
+}
@@ -15,52 +15,143 @@
  */
 package android.example.com.rottentomatillos;
 
-import android.content.ContentUris;
-import android.content.ContentValues;
 import android.content.Context;
+import android.database.CharArrayBuffer;
 import android.database.Cursor;
 import android.graphics.PorterDuff;
 import android.graphics.drawable.LayerDrawable;
+import android.support.v4.widget.CursorAdapter;
+import android.util.Log;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
-import android.widget.CursorAdapter;
 import android.widget.RatingBar;
 import android.widget.TextView;
+import android.example.com.rottentomatillos.data.RatingWriteQueue;
 import android.example.com.rottentomatillos.data.TomatilloContract.Movie;
 import android.example.com.rottentomatillos.data.TomatilloProvider;
 
+import java.util.ArrayList;
+
 /**
  * This is a custom adapter for creating a list view from a cursor. The list view
  * contains clickable {@link RatingBar}s that uses a user can change by
  * selecting a new number of stars. This works in conjuncture with a {@link TomatilloProvider}
  * to display movie ratings.
+ *
+ * A new rating is shown straight away and written to the provider in the background, through a
+ * {@link RatingWriteQueue} so that dragging across the stars writes only the rating the drag ends
+ * on. Call {@link #flushRatings()} when the activity pauses. Until the cursor catches up, which
+ * happens when the loader reloads after the provider's change notification, the adapter shows
+ * the new rating in place of the one in the cursor. If the rating cannot be written, the adapter
+ * goes back to showing the one in the cursor.
  */
 public class RatingAdapter extends CursorAdapter {
     private Context mContext;
 
     /**
      * An implementation of the view holder pattern, which caches views so that one does not need
-     * to transverse the entire view tree to find a view.
+     * to transverse the entire view tree to find a view. It also holds the objects bindView reuses
+     * for every row shown in the view, so that binding a row does not allocate anything.
      */
     public static class ViewHolder {
         public final RatingBar ratingBar;
         public final TextView titleView;
 
+        // The title is copied out of the cursor into this buffer instead of into a new String.
+        public final CharArrayBuffer titleBuffer = new CharArrayBuffer(64);
+
+        // Listens to ratingBar for whichever movie the view is showing.
+        public RatingClickListener ratingListener;
+
         public ViewHolder(View view) {
             ratingBar = (RatingBar) view.findViewById(R.id.rating_bar);
             titleView = (TextView) view.findViewById(R.id.movie_name);
         }
     }
 
+    /**
+     * A rating the user has set that the cursor may not show yet.
+     */
+    private static class PendingRating {
+        long id;
+        int rating;
+        // Whether this rating has been written to the provider.
+        boolean written;
+    }
+
     private static final String LOG_TAG = RatingAdapter.class.getSimpleName();
-    private static int sLoaderID;
 
+    // Writes ratings to the provider on a background thread.
+    private final RatingWriteQueue mWriteQueue;
+
+    // Ratings set by the user that the cursor may not show yet. There are only ever a few, so
+    // they are kept in a list that can be searched without allocating.
+    private final ArrayList<PendingRating> mPendingRatings = new ArrayList<PendingRating>();
+
+    // Column indices in the current cursor, looked up when the cursor is swapped in rather than
+    // for every row.
+    private int mTitleIndex;
+    private int mRatingIndex;
+    private int mIdIndex;
 
-    public RatingAdapter(Context context, Cursor c, int flags, int loaderID) {
+    public RatingAdapter(Context context, Cursor c, int flags) {
         super(context, c, flags);
         mContext = context;
-        sLoaderID = loaderID;
+        findColumns(c);
+
+        mWriteQueue = new RatingWriteQueue(context.getContentResolver(),
+                RatingWriteQueue.DEFAULT_WINDOW_MILLIS);
+        mWriteQueue.setListener(new RatingWriteQueue.Listener() {
+            @Override
+            public void onRatingsWritten(long[] ids, int[] ratings) {
+                for (int i = 0; i < ids.length; i++) {
+                    // If the user has set another rating since, that one is still to be written.
+                    PendingRating pending = findPendingRating(ids[i]);
+                    if (pending != null && pending.rating == ratings[i]) {
+                        pending.written = true;
+                    }
+                }
+            }
+
+            @Override
+            public void onRatingsFailed(long[] ids, int[] ratings) {
+                Log.w(LOG_TAG, "Could not save " + ids.length + " ratings");
+                boolean rolledBack = false;
+                for (int i = 0; i < ids.length; i++) {
+                    // If the user has set another rating since, that one is still to be written.
+                    PendingRating pending = findPendingRating(ids[i]);
+                    if (pending != null && pending.rating == ratings[i] && !pending.written) {
+                        mPendingRatings.remove(pending);
+                        rolledBack = true;
+                    }
+                }
+                if (rolledBack) {
+                    // Show the ratings in the cursor again, which are the ones saved.
+                    notifyDataSetChanged();
+                }
+            }
+        });
+    }
+
+    /**
+     * Starts writing the ratings the user has set that are still waiting in the write queue.
+     */
+    public void flushRatings() {
+        mWriteQueue.flush();
+    }
+
+    @Override
+    public Cursor swapCursor(Cursor newCursor) {
+        findColumns(newCursor);
+        return super.swapCursor(newCursor);
+    }
+
+    private void findColumns(Cursor cursor) {
+        if (cursor == null) return;
+        mTitleIndex = cursor.getColumnIndex(Movie.TITLE);
+        mRatingIndex = cursor.getColumnIndex(Movie.RATING);
+        mIdIndex = cursor.getColumnIndex(Movie._ID);
     }
 
     @Override
@@ -77,6 +168,10 @@ public class RatingAdapter extends CursorAdapter {
         stars.getDrawable(2).setColorFilter(c.getResources().getColor(R.color.rt_orange),
                 PorterDuff.Mode.SRC_ATOP);
 
+        // One listener per view, pointed at a new movie each time the view is bound.
+        viewHolder.ratingListener = new RatingClickListener();
+        viewHolder.ratingBar.setOnRatingBarChangeListener(viewHolder.ratingListener);
+
         view.setTag(viewHolder);
 
         return view;
@@ -87,47 +182,73 @@ public class RatingAdapter extends CursorAdapter {
 
         ViewHolder viewHolder = (ViewHolder) view.getTag();
 
-        // Read title from cursor
-        int titleIndex = cursor.getColumnIndex(Movie.TITLE);
-        final String movieTitle = cursor.getString(titleIndex);
-        viewHolder.titleView.setText(movieTitle);
+        // Point the listener at this movie before setting the rating, which calls it.
+        viewHolder.ratingListener.setID(cursor.getLong(mIdIndex));
 
-        int ratingIndex = cursor.getColumnIndex(Movie.RATING);
-        int rating = cursor.getInt(ratingIndex);
+        // Read title from cursor
+        cursor.copyStringToBuffer(mTitleIndex, viewHolder.titleBuffer);
+        viewHolder.titleView.setText(viewHolder.titleBuffer.data, 0,
+                viewHolder.titleBuffer.sizeCopied);
+
+        int rating = cursor.getInt(mRatingIndex);
+        PendingRating pending = findPendingRating(cursor.getLong(mIdIndex));
+        if (pending != null) {
+            if (pending.written && pending.rating == rating) {
+                // The cursor has caught up with the user.
+                mPendingRatings.remove(pending);
+            } else {
+                rating = pending.rating;
+            }
+        }
         float ratingDisplay = (float)(Math.max(1, Math.min(rating, 5)));
         // Show a number of stars equal to what was returned from the cursor for the movie.
         viewHolder.ratingBar.setRating(ratingDisplay);
+    }
 
-        int idIndex = cursor.getColumnIndex(Movie._ID);
-        long id = cursor.getLong(idIndex);
+    /**
+     * Returns the rating the user set for the movie that the cursor may not show yet, or null.
+     */
+    private PendingRating findPendingRating(long id) {
+        for (int i = 0; i < mPendingRatings.size(); i++) {
+            PendingRating pending = mPendingRatings.get(i);
+            if (pending.id == id) return pending;
+        }
+        return null;
+    }
 
-        viewHolder.ratingBar.setOnRatingBarChangeListener(new RatingClickListener(id));
+    /**
+     * Shows the new rating for the movie from now on, and queues it to be written to the provider
+     * in the background.
+     */
+    private void setRating(long id, int rating) {
+        PendingRating pending = findPendingRating(id);
+        if (pending == null) {
+            pending = new PendingRating();
+            pending.id = id;
+            mPendingRatings.add(pending);
+        }
+        pending.rating = rating;
+        pending.written = false;
+
+        mWriteQueue.setRating(id, rating);
     }
 
     protected class RatingClickListener implements RatingBar.OnRatingBarChangeListener {
         private long mID;
-        public RatingClickListener(long id) {
-            super();
+
+        public void setID(long id) {
             mID = id;
         }
 
         @Override
         public void onRatingChanged(RatingBar ratingBar, float rating, boolean fromUser) {
-            // If the user changed the rating, update the rating in the ContentProvider.
+            // If the user changed the rating, update the rating in the ContentProvider. There is
+            // no need to reload the list: the provider notifies the loader of the change.
             if (fromUser) {
-                long roundedRating = Math.max(Math.min(Math.round(rating),5),0);
+                // The provider only accepts ratings from 1 to 5.
+                int roundedRating = Math.max(Math.min(Math.round(rating),5),1);
                 ratingBar.setRating(roundedRating);
-
-                ContentValues values = new ContentValues();
-                values.put(Movie.RATING, roundedRating);
-
-                mContext.getContentResolver().update(
-                        ContentUris.withAppendedId(Movie.CONTENT_URI,
-                                mID),
-                        values,null,null);
-                // Tell the loader to reload the data in the cursor adapter.
-                ((MainActivity)mContext).getSupportLoaderManager().restartLoader(
-                        sLoaderID, null, (MainActivity)mContext);
+                setRating(mID, roundedRating);
             }
         }
     }
@@ -0,0 +1,422 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package android.example.com.rottentomatillos.data;
+
+import android.content.ContentProviderOperation;
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.content.Context;
+import android.content.OperationApplicationException;
+import android.content.SharedPreferences;
+import android.example.com.rottentomatillos.data.TomatilloContract.Movie;
+import android.net.Uri;
+import android.os.Build;
+import android.os.Bundle;
+import android.os.RemoteException;
+import android.util.Log;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Pulls the movie catalog from an upstream HTTP service into {@link TomatilloProvider}.
+ *
+ * The catalog is served a page at a time, at the catalog Url with a page query parameter
+ * counting from 0. Each page is a JSON array of objects with "title" and "rating" members, and
+ * the first page that is missing (404) or empty ends the catalog. Several pages are fetched at
+ * once, and each page is upserted through one provider call, so it costs one transaction and one
+ * change notification.
+ *
+ * Requests are conditional: the ETag and Last-Modified of each page are kept in
+ * SharedPreferences once the page has been applied, so a page that has not changed since costs
+ * one 304 response and no database work. Requests that fail with an I/O error, a 5xx or a 429
+ * are retried with exponential backoff, or after the Retry-After the server asks for. A page
+ * that still fails stops the sync from starting any more pages, and the pages applied before it
+ * are kept.
+ *
+ * {@link #sync()} blocks, so call it from a background thread, such as a SyncAdapter's.
+ */
+public class CatalogSyncer {
+    private static final String LOG_TAG = CatalogSyncer.class.getSimpleName();
+
+    /**
+     * The query parameter holding the number of the page to fetch.
+     */
+    public static final String QUERY_PARAMETER_PAGE = "page";
+
+    public static final int DEFAULT_PARALLELISM = 4;
+    public static final long DEFAULT_INITIAL_BACKOFF_MILLIS = 1000;
+    public static final int DEFAULT_MAX_ATTEMPTS = 4;
+
+    private static final long MAX_BACKOFF_MILLIS = 60 * 1000;
+    private static final int CONNECT_TIMEOUT_MILLIS = 15 * 1000;
+    private static final int READ_TIMEOUT_MILLIS = 30 * 1000;
+
+    /**
+     * The SharedPreferences holding the validators of each page, by page Url and suffix.
+     */
+    private static final String PREFERENCES_NAME = "catalog_sync";
+    private static final String KEY_ETAG = "|etag";
+    private static final String KEY_LAST_MODIFIED = "|last_modified";
+
+    private static final int HTTP_TOO_MANY_REQUESTS = 429;
+
+    /**
+     * What became of one page.
+     */
+    private static final int PAGE_CHANGED = 0;
+    private static final int PAGE_NOT_MODIFIED = 1;
+    private static final int PAGE_END = 2;
+    private static final int PAGE_FAILED = 3;
+
+    private static final class PageResult {
+        final int page;
+        final int outcome;
+        final int movies;
+
+        PageResult(int page, int outcome, int movies) {
+            this.page = page;
+            this.outcome = outcome;
+            this.movies = movies;
+        }
+    }
+
+    /**
+     * What a sync did.
+     */
+    public static class Result {
+        private int mPagesChanged;
+        private int mPagesNotModified;
+        private int mPagesFailed;
+        private int mMovies;
+
+        /**
+         * The number of pages that were fetched and applied.
+         */
+        public int getPagesChanged() {
+            return mPagesChanged;
+        }
+
+        /**
+         * The number of pages that had not changed since the last sync.
+         */
+        public int getPagesNotModified() {
+            return mPagesNotModified;
+        }
+
+        /**
+         * The number of pages that could not be fetched or applied. The next sync fetches them
+         * again.
+         */
+        public int getPagesFailed() {
+            return mPagesFailed;
+        }
+
+        /**
+         * The number of movies in the pages that were applied.
+         */
+        public int getMovies() {
+            return mMovies;
+        }
+
+        @Override
+        public String toString() {
+            return mPagesChanged + " pages changed with " + mMovies + " movies, " +
+                    mPagesNotModified + " not modified, " + mPagesFailed + " failed";
+        }
+    }
+
+    private final ContentResolver mResolver;
+    private final SharedPreferences mPreferences;
+    private final String mCatalogUrl;
+
+    private int mParallelism = DEFAULT_PARALLELISM;
+    private long mInitialBackoffMillis = DEFAULT_INITIAL_BACKOFF_MILLIS;
+    private int mMaxAttempts = DEFAULT_MAX_ATTEMPTS;
+
+    public CatalogSyncer(Context context, String catalogUrl) {
+        mResolver = context.getContentResolver();
+        mPreferences = context.getSharedPreferences(PREFERENCES_NAME, Context.MODE_PRIVATE);
+        mCatalogUrl = catalogUrl;
+    }
+
+    /**
+     * Sets how many pages are fetched at once.
+     */
+    public void setParallelism(int parallelism) {
+        if (parallelism < 1) {
+            throw new IllegalArgumentException("Parallelism must be at least 1: " + parallelism);
+        }
+        mParallelism = parallelism;
+    }
+
+    /**
+     * Sets how long to wait before the first retry of a failed request, which doubles with each
+     * retry after it, and how many times a request is tried in all.
+     */
+    public void setBackoff(long initialMillis, int maxAttempts) {
+        if (initialMillis < 0 || maxAttempts < 1) {
+            throw new IllegalArgumentException("Bad backoff: " + initialMillis + " ms, " +
+                    maxAttempts + " attempts");
+        }
+        mInitialBackoffMillis = initialMillis;
+        mMaxAttempts = maxAttempts;
+    }
+
+    /**
+     * Forgets the validators of every page, so that the next sync fetches the whole catalog.
+     */
+    public void forgetValidators() {
+        mPreferences.edit().clear().commit();
+    }
+
+    /**
+     * Fetches and applies every page of the catalog that changed since the last sync.
+     */
+    public Result sync() throws InterruptedException {
+        long start = System.currentTimeMillis();
+        Result result = new Result();
+        ExecutorService executor = Executors.newFixedThreadPool(mParallelism);
+        CompletionService<PageResult> pages = new ExecutorCompletionService<PageResult>(executor);
+        // The page of each running fetch, for those that fail without returning a result.
+        Map<Future<PageResult>, Integer> running = new HashMap<Future<PageResult>, Integer>();
+        try {
+            int next = 0;
+            // Pages from here on are not started: the catalog ends before them, or a page failed.
+            int last = Integer.MAX_VALUE;
+            for (; next < mParallelism; next++) {
+                running.put(submit(pages, next), next);
+            }
+            while (!running.isEmpty()) {
+                Future<PageResult> future = pages.take();
+                int number = running.remove(future);
+                PageResult page;
+                try {
+                    page = future.get();
+                } catch (ExecutionException e) {
+                    Log.e(LOG_TAG, "Could not sync page " + number, e.getCause());
+                    page = new PageResult(number, PAGE_FAILED, 0);
+                }
+
+                switch (page.outcome) {
+                    case PAGE_CHANGED: {
+                        result.mPagesChanged++;
+                        result.mMovies += page.movies;
+                        break;
+                    }
+                    case PAGE_NOT_MODIFIED: {
+                        result.mPagesNotModified++;
+                        break;
+                    }
+                    case PAGE_END: {
+                        last = Math.min(last, page.page);
+                        break;
+                    }
+                    default: {
+                        result.mPagesFailed++;
+                        last = Math.min(last, page.page);
+                        break;
+                    }
+                }
+                if (next < last) {
+                    running.put(submit(pages, next), next);
+                    next++;
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        Log.i(LOG_TAG, "Synced the catalog in " + (System.currentTimeMillis() - start) + " ms: " +
+                result);
+        return result;
+    }
+
+    private Future<PageResult> submit(CompletionService<PageResult> pages, final int page) {
+        return pages.submit(new Callable<PageResult>() {
+            @Override
+            public PageResult call() throws InterruptedException {
+                return syncPage(page);
+            }
+        });
+    }
+
+    /**
+     * Fetches one page, retrying as needed, and applies it if it changed. Runs on a thread of
+     * the sync's executor.
+     */
+    private PageResult syncPage(int page) throws InterruptedException {
+        String url = Uri.parse(mCatalogUrl).buildUpon()
+                .appendQueryParameter(QUERY_PARAMETER_PAGE, Integer.toString(page))
+                .build().toString();
+        for (int attempt = 1; ; attempt++) {
+            long retryAfterMillis = 0;
+            try {
+                HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+                try {
+                    connection.setConnectTimeout(CONNECT_TIMEOUT_MILLIS);
+                    connection.setReadTimeout(READ_TIMEOUT_MILLIS);
+                    String etag = mPreferences.getString(url + KEY_ETAG, null);
+                    if (etag != null) {
+                        connection.setRequestProperty("If-None-Match", etag);
+                    }
+                    long lastModified = mPreferences.getLong(url + KEY_LAST_MODIFIED, 0);
+                    if (lastModified != 0) {
+                        connection.setIfModifiedSince(lastModified);
+                    }
+
+                    int code = connection.getResponseCode();
+                    if (code == HttpURLConnection.HTTP_NOT_MODIFIED) {
+                        return new PageResult(page, PAGE_NOT_MODIFIED, 0);
+                    }
+                    if (code == HttpURLConnection.HTTP_NOT_FOUND) {
+                        return new PageResult(page, PAGE_END, 0);
+                    }
+                    if (code == HttpURLConnection.HTTP_OK) {
+                        ContentValues[] movies = parsePage(connection.getInputStream());
+                        if (movies.length == 0) {
+                            return new PageResult(page, PAGE_END, 0);
+                        }
+                        if (!applyPage(movies)) {
+                            return new PageResult(page, PAGE_FAILED, 0);
+                        }
+                        // Only remembered now that the page is in the database.
+                        mPreferences.edit()
+                                .putString(url + KEY_ETAG, connection.getHeaderField("ETag"))
+                                .putLong(url + KEY_LAST_MODIFIED, connection.getLastModified())
+                                .commit();
+                        return new PageResult(page, PAGE_CHANGED, movies.length);
+                    }
+                    if (code != HTTP_TOO_MANY_REQUESTS && code < 500) {
+                        Log.e(LOG_TAG, "Could not fetch " + url + ": HTTP " + code);
+                        return new PageResult(page, PAGE_FAILED, 0);
+                    }
+                    Log.w(LOG_TAG, "Fetching " + url + " failed with HTTP " + code);
+                    retryAfterMillis = getRetryAfterMillis(connection);
+                } finally {
+                    connection.disconnect();
+                }
+            } catch (IOException e) {
+                Log.w(LOG_TAG, "Fetching " + url + " failed", e);
+            } catch (JSONException e) {
+                Log.e(LOG_TAG, "Could not parse " + url, e);
+                return new PageResult(page, PAGE_FAILED, 0);
+            }
+
+            if (attempt == mMaxAttempts) {
+                Log.e(LOG_TAG, "Giving up on " + url + " after " + attempt + " attempts");
+                return new PageResult(page, PAGE_FAILED, 0);
+            }
+            long backoffMillis = Math.min(mInitialBackoffMillis << Math.min(attempt - 1, 20),
+                    MAX_BACKOFF_MILLIS);
+            Thread.sleep(Math.max(backoffMillis, retryAfterMillis));
+        }
+    }
+
+    /**
+     * Returns the delay asked for by a Retry-After header in seconds, or 0.
+     */
+    private static long getRetryAfterMillis(HttpURLConnection connection) {
+        String retryAfter = connection.getHeaderField("Retry-After");
+        if (retryAfter == null) return 0;
+        try {
+            return Math.min(Long.parseLong(retryAfter.trim()) * 1000, MAX_BACKOFF_MILLIS);
+        } catch (NumberFormatException e) {
+            // An HTTP date, which is not worth parsing for this.
+            return 0;
+        }
+    }
+
+    /**
+     * Reads a page of movies. Movies without a title or with a rating outside 1 to 5 are skipped.
+     */
+    private static ContentValues[] parsePage(InputStream in) throws IOException, JSONException {
+        StringBuilder text = new StringBuilder();
+        Reader reader = new InputStreamReader(in, "UTF-8");
+        try {
+            char[] buffer = new char[8 * 1024];
+            int count;
+            while ((count = reader.read(buffer)) != -1) {
+                text.append(buffer, 0, count);
+            }
+        } finally {
+            reader.close();
+        }
+
+        JSONArray page = new JSONArray(text.toString());
+        ArrayList<ContentValues> movies = new ArrayList<ContentValues>(page.length());
+        for (int i = 0; i < page.length(); i++) {
+            JSONObject movie = page.getJSONObject(i);
+            String title = movie.optString(Movie.TITLE).trim();
+            int rating = movie.optInt(Movie.RATING);
+            if (movie.isNull(Movie.TITLE) || title.length() == 0 || rating < 1 || rating > 5) {
+                continue;
+            }
+            ContentValues values = new ContentValues(2);
+            values.put(Movie.TITLE, title);
+            values.put(Movie.RATING, rating);
+            movies.add(values);
+        }
+        return movies.toArray(new ContentValues[movies.size()]);
+    }
+
+    /**
+     * Upserts the movies of a page in one transaction. Returns false if that failed.
+     */
+    private boolean applyPage(ContentValues[] movies) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB) {
+            Bundle extras = new Bundle();
+            extras.putParcelableArray(TomatilloContract.EXTRA_VALUES, movies);
+            mResolver.call(Movie.CONTENT_URI, TomatilloContract.METHOD_UPSERT, null, extras);
+            return true;
+        }
+
+        // ContentResolver.call() needs API 11, so older versions send a batch of upserts.
+        ArrayList<ContentProviderOperation> operations =
+                new ArrayList<ContentProviderOperation>(movies.length);
+        for (ContentValues movie : movies) {
+            operations.add(ContentProviderOperation.newInsert(Movie.buildUpsertUri())
+                    .withValues(movie)
+                    .build());
+        }
+        try {
+            mResolver.applyBatch(TomatilloContract.CONTENT_AUTHORITY, operations);
+            return true;
+        } catch (RemoteException e) {
+            Log.e(LOG_TAG, "Could not apply " + movies.length + " movies", e);
+        } catch (OperationApplicationException e) {
+            Log.e(LOG_TAG, "Could not apply " + movies.length + " movies", e);
+        }
+        return false;
+    }
+}
@@ -0,0 +1,128 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package android.example.com.rottentomatillos.data;
+
+import android.content.ContentResolver;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Sends the change notifications for {@link TomatilloProvider}, merging them where it can.
+ *
+ * Writes are notified on the Uri of the row they changed where there is one, so that observers of
+ * other rows are left alone; observers of the whole table still hear about it, because a change
+ * to a row is also a change to the table. When several different Uris change together, they are
+ * merged into one notification for the whole table, so that an observer of the table reloads once
+ * instead of once per row. That happens for the writes made during a batch, and, if a delay is
+ * set, for the writes made within that delay of the first one.
+ */
+class ChangeNotifier {
+    private final ContentResolver mResolver;
+    private final Uri mTableUri;
+    private final long mDelayMillis;
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+
+    /**
+     * The Uris changed so far by the batch running on the current thread, or null if no batch is
+     * running on it.
+     */
+    private final ThreadLocal<Set<Uri>> mBatch = new ThreadLocal<Set<Uri>>();
+
+    // The Uris waiting for the delay to pass. Guarded by this.
+    private final Set<Uri> mPending = new HashSet<Uri>();
+
+    private final Runnable mFlush = new Runnable() {
+        @Override
+        public void run() {
+            Uri uri;
+            synchronized (ChangeNotifier.this) {
+                uri = merge(mPending);
+                mPending.clear();
+            }
+            if (uri != null) {
+                mResolver.notifyChange(uri, null);
+            }
+        }
+    };
+
+    /**
+     * @param tableUri the Uri to notify when changes to several Uris are merged.
+     * @param delayMillis how long to hold back a notification so that it can be merged with the
+     *                    ones that follow it, or 0 to send every notification straight away.
+     */
+    ChangeNotifier(ContentResolver resolver, Uri tableUri, long delayMillis) {
+        mResolver = resolver;
+        mTableUri = tableUri;
+        mDelayMillis = delayMillis;
+    }
+
+    /**
+     * Notifies observers that the data at the uri changed, or will do so once the batch running
+     * on this thread ends or the delay has passed.
+     */
+    void notifyChange(Uri uri) {
+        Set<Uri> batch = mBatch.get();
+        if (batch != null) {
+            batch.add(uri);
+            return;
+        }
+        if (mDelayMillis <= 0) {
+            mResolver.notifyChange(uri, null);
+            return;
+        }
+        synchronized (this) {
+            // The window starts at the first change, so a steady stream of writes still gets a
+            // notification every delayMillis.
+            if (mPending.isEmpty()) {
+                mHandler.postDelayed(mFlush, mDelayMillis);
+            }
+            mPending.add(uri);
+        }
+    }
+
+    /**
+     * Starts collecting the notifications made on this thread.
+     */
+    void beginBatch() {
+        mBatch.set(new HashSet<Uri>());
+    }
+
+    /**
+     * Stops collecting the notifications made on this thread and sends them as one.
+     *
+     * @return whether anything changed during the batch.
+     */
+    boolean endBatch() {
+        Set<Uri> batch = mBatch.get();
+        mBatch.remove();
+        Uri uri = merge(batch);
+        if (uri == null) return false;
+        notifyChange(uri);
+        return true;
+    }
+
+    /**
+     * Returns the one Uri to notify for a set of changed Uris, or null if the set is empty.
+     */
+    private Uri merge(Set<Uri> uris) {
+        if (uris == null || uris.isEmpty()) return null;
+        return uris.size() == 1 ? uris.iterator().next() : mTableUri;
+    }
+}
@@ -0,0 +1,122 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package android.example.com.rottentomatillos.data;
+
+import android.content.ContentResolver;
+import android.example.com.rottentomatillos.data.TomatilloContract.MovieExport;
+import android.os.ParcelFileDescriptor;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Reads the binary movie export described in {@link MovieExport}, one movie at a time:
+ *
+ * <pre>
+ * MovieExportReader reader = MovieExportReader.open(getContentResolver());
+ * try {
+ *     while (reader.next()) {
+ *         use(reader.getId(), reader.getTitle(), reader.getRating());
+ *     }
+ * } finally {
+ *     reader.close();
+ * }
+ * </pre>
+ */
+public class MovieExportReader implements Closeable {
+    private final DataInputStream mIn;
+
+    // Holds the UTF-8 bytes of the current title, grown as longer titles come along.
+    private byte[] mTitleBytes = new byte[64];
+
+    private long mId;
+    private String mTitle;
+    private int mRating;
+    private boolean mEnded;
+
+    /**
+     * Starts an export from the provider and returns a reader for it.
+     */
+    public static MovieExportReader open(ContentResolver resolver) throws FileNotFoundException {
+        ParcelFileDescriptor fd = resolver.openFileDescriptor(MovieExport.CONTENT_URI, "r");
+        return new MovieExportReader(new ParcelFileDescriptor.AutoCloseInputStream(fd));
+    }
+
+    /**
+     * Creates a reader for an export stream, which it closes when it is closed.
+     */
+    public MovieExportReader(InputStream in) {
+        mIn = new DataInputStream(new BufferedInputStream(in, 64 * 1024));
+    }
+
+    /**
+     * Moves to the next movie. Returns false at the end of the export, and throws EOFException if
+     * the stream ended before the export was complete.
+     */
+    public boolean next() throws IOException {
+        if (mEnded) return false;
+        int length = mIn.readInt();
+        if (length == MovieExport.END_OF_EXPORT) {
+            mEnded = true;
+            return false;
+        }
+        if (length < 0) {
+            throw new IOException("Bad title length " + length);
+        }
+        if (length > mTitleBytes.length) {
+            mTitleBytes = new byte[Math.max(length, 2 * mTitleBytes.length)];
+        }
+        mIn.readFully(mTitleBytes, 0, length);
+        mTitle = new String(mTitleBytes, 0, length, "UTF-8");
+        mRating = mIn.readInt();
+        mId = mIn.readLong();
+        return true;
+    }
+
+    /**
+     * The _ID of the current movie.
+     */
+    public long getId() {
+        return mId;
+    }
+
+    /**
+     * The title of the current movie.
+     */
+    public String getTitle() {
+        return mTitle;
+    }
+
+    /**
+     * The rating of the current movie.
+     */
+    public int getRating() {
+        return mRating;
+    }
+
+    /**
+     * Closes the stream. Closing before the end of the export stops the provider from writing the
+     * rest of it.
+     */
+    @Override
+    public void close() throws IOException {
+        mIn.close();
+    }
+}
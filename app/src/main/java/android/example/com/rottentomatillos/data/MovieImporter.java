@@ -0,0 +1,227 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package android.example.com.rottentomatillos.data;
+
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.example.com.rottentomatillos.data.TomatilloContract.Movie;
+import android.example.com.rottentomatillos.data.TomatilloContract.MovieImport;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+
+/**
+ * Reads movies from a stream in one of the {@link MovieImport} formats and writes them to the
+ * database a chunk at a time. Only one chunk of movies is held in memory at once, and each chunk
+ * is read in full before its transaction starts, so a slow writer on the other end of the stream
+ * never keeps the database locked.
+ *
+ * The counts are only updated once a chunk has been committed, and can be read from any thread
+ * while the import runs.
+ */
+class MovieImporter {
+
+    /**
+     * Told after each chunk has been committed, on the thread running the import.
+     */
+    interface Listener {
+        /**
+         * @param changed the number of movies the chunk inserted or updated.
+         */
+        void onChunkCommitted(int changed);
+    }
+
+    private final SQLiteDatabase mDb;
+    private final boolean mNdjson;
+    private final boolean mUpsert;
+
+    // The chunk being read, reused for every chunk.
+    private final String[] mTitles;
+    private final int[] mRatings;
+
+    private volatile String mStatus = MovieImport.STATUS_RUNNING;
+    private volatile String mError;
+    private volatile int mRowsRead;
+    private volatile int mInserted;
+    private volatile int mUpdated;
+    private volatile int mSkipped;
+
+    /**
+     * Throws IllegalArgumentException if the format is not one of the {@link MovieImport}
+     * formats.
+     */
+    MovieImporter(SQLiteDatabase db, String format, boolean upsert, int chunkSize) {
+        if (MovieImport.FORMAT_NDJSON.equals(format)) {
+            mNdjson = true;
+        } else if (MovieImport.FORMAT_CSV.equals(format)) {
+            mNdjson = false;
+        } else {
+            throw new IllegalArgumentException("Unknown import format: " + format);
+        }
+        mDb = db;
+        mUpsert = upsert;
+        mTitles = new String[chunkSize];
+        mRatings = new int[chunkSize];
+    }
+
+    /**
+     * Imports every movie in the stream. If reading the stream fails, the chunks committed before
+     * the failure stay in the database, the import is marked as failed and the exception is
+     * thrown on.
+     */
+    void run(BufferedReader reader, Listener listener) throws IOException {
+        SQLiteStatement insert = mDb.compileStatement(TomatilloProvider.INSERT_OR_IGNORE_MOVIE);
+        SQLiteStatement update = mDb.compileStatement(TomatilloProvider.UPDATE_RATING_BY_TITLE);
+        try {
+            int count;
+            do {
+                count = readChunk(reader);
+                int changed = writeChunk(count, insert, update);
+                if (listener != null && count > 0) {
+                    listener.onChunkCommitted(changed);
+                }
+            } while (count == mTitles.length);
+            mStatus = MovieImport.STATUS_DONE;
+        } catch (IOException e) {
+            fail(e);
+            throw e;
+        } catch (RuntimeException e) {
+            fail(e);
+            throw e;
+        } finally {
+            insert.close();
+            update.close();
+        }
+    }
+
+    private void fail(Exception e) {
+        mError = e.toString();
+        mStatus = MovieImport.STATUS_FAILED;
+    }
+
+    /**
+     * Reads up to a chunk of movies into mTitles and mRatings and returns how many it read. Lines
+     * that do not hold a valid movie are counted as skipped and leave a null title.
+     */
+    private int readChunk(BufferedReader reader) throws IOException {
+        int count = 0;
+        String line;
+        while (count < mTitles.length && (line = reader.readLine()) != null) {
+            line = line.trim();
+            if (line.length() == 0 || (!mNdjson && line.charAt(0) == '#')) continue;
+            if (mNdjson ? parseJson(line, count) : parseCsv(line, count)) {
+                if (mTitles[count].length() == 0 || mRatings[count] < 1 || mRatings[count] > 5) {
+                    mTitles[count] = null;
+                }
+            }
+            count++;
+        }
+        return count;
+    }
+
+    private boolean parseCsv(String line, int index) {
+        int comma = line.indexOf(',');
+        mTitles[index] = null;
+        if (comma < 0) return false;
+        try {
+            mRatings[index] = Integer.parseInt(line.substring(0, comma).trim());
+        } catch (NumberFormatException e) {
+            return false;
+        }
+        mTitles[index] = line.substring(comma + 1).trim();
+        return true;
+    }
+
+    private boolean parseJson(String line, int index) {
+        mTitles[index] = null;
+        try {
+            JSONObject movie = new JSONObject(line);
+            if (movie.isNull(Movie.TITLE)) return false;
+            mRatings[index] = movie.getInt(Movie.RATING);
+            mTitles[index] = movie.getString(Movie.TITLE).trim();
+            return true;
+        } catch (JSONException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Writes the first count movies of the chunk in one transaction and returns how many of them
+     * were inserted or updated.
+     */
+    private int writeChunk(int count, SQLiteStatement insert, SQLiteStatement update) {
+        int inserted = 0;
+        int updated = 0;
+        int skipped = 0;
+
+        mDb.beginTransaction();
+        try {
+            for (int i = 0; i < count; i++) {
+                if (mTitles[i] == null) {
+                    skipped++;
+                    continue;
+                }
+                insert.bindString(1, mTitles[i]);
+                insert.bindLong(2, mRatings[i]);
+                if (insert.executeInsert() != -1) {
+                    inserted++;
+                } else if (mUpsert) {
+                    update.bindLong(1, mRatings[i]);
+                    update.bindString(2, mTitles[i]);
+                    updated += TomatilloProvider.executeUpdateDelete(mDb, update);
+                } else {
+                    skipped++;
+                }
+            }
+            mDb.setTransactionSuccessful();
+        } finally {
+            mDb.endTransaction();
+        }
+
+        mRowsRead += count;
+        mInserted += inserted;
+        mUpdated += updated;
+        mSkipped += skipped;
+        return inserted + updated;
+    }
+
+    String getStatus() {
+        return mStatus;
+    }
+
+    String getError() {
+        return mError;
+    }
+
+    int getRowsRead() {
+        return mRowsRead;
+    }
+
+    int getInserted() {
+        return mInserted;
+    }
+
+    int getUpdated() {
+        return mUpdated;
+    }
+
+    int getSkipped() {
+        return mSkipped;
+    }
+}
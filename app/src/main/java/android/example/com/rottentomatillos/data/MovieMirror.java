@@ -0,0 +1,385 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package android.example.com.rottentomatillos.data;
+
+import android.database.AbstractCursor;
+import android.database.CharArrayBuffer;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.example.com.rottentomatillos.data.TomatilloContract.Movie;
+
+import java.util.Arrays;
+
+/**
+ * An in-memory copy of the movie table for {@link TomatilloProvider}, kept as columns of
+ * primitives: the _IDs in a long array in ascending order, the ratings in a byte array, and all
+ * of the titles one after the other in a single char array. Reads of the whole table or of one
+ * movie are served from it by a cursor that never touches SQLite.
+ *
+ * The copy is loaded on the first read and is never changed after that, so any number of cursors
+ * can read it at once. A write either replaces it with a new copy that has the write applied,
+ * for a rating set on a single movie through {@link #updateRating(MovieStatements, long, int)},
+ * or drops it, to be loaded again by the next read. Like {@link QueryCache}, every write moves to
+ * a new generation, and a copy that was being loaded while a write happened is never kept.
+ *
+ * If the table would take more memory than the budget, reads fall back to SQLite until the next
+ * write, which may have made the table small enough again.
+ */
+class MovieMirror {
+
+    /**
+     * The bytes each movie takes besides its title: an _ID, a rating and the start of the title.
+     */
+    private static final int ROW_SIZE = 8 + 1 + 4;
+
+    private static final int COLUMN_ID = 0;
+    private static final int COLUMN_TITLE = 1;
+    private static final int COLUMN_RATING = 2;
+
+    private static final String[] ALL_COLUMNS = new String[] {
+            Movie._ID, Movie.TITLE, Movie.RATING };
+
+    /**
+     * A copy of the movie table. Never changed once built.
+     */
+    private static final class Snapshot {
+        final long[] ids;
+        final byte[] ratings;
+        final char[] titles;
+        // Title i is titles[titleStarts[i]] up to titles[titleStarts[i + 1]].
+        final int[] titleStarts;
+
+        Snapshot(long[] ids, byte[] ratings, char[] titles, int[] titleStarts) {
+            this.ids = ids;
+            this.ratings = ratings;
+            this.titles = titles;
+            this.titleStarts = titleStarts;
+        }
+    }
+
+    private final int mMaxSize;
+
+    // Only one thread loads the table at a time; the others wait for its copy.
+    private final Object mLoadLock = new Object();
+
+    // Held across a rating write and its update of the copy, so that the copy takes the ratings
+    // in the order they were committed.
+    private final Object mWriteLock = new Object();
+
+    // Guarded by this.
+    private long mGeneration;
+    private Snapshot mSnapshot;
+    // The generation at which the table was found to be over budget, or -1.
+    private long mTooBigGeneration = -1;
+
+    /**
+     * Creates a mirror that holds the table while it takes at most about maxSize bytes.
+     */
+    MovieMirror(int maxSize) {
+        mMaxSize = maxSize;
+    }
+
+    /**
+     * Returns a cursor over the first limit movies in _ID order, or every movie if limit is
+     * negative, or null if the read has to go to SQLite instead.
+     */
+    Cursor query(SQLiteDatabase db, String[] projection, int limit) {
+        int[] columns = mapColumns(projection);
+        if (columns == null) return null;
+        Snapshot snapshot = getSnapshot(db);
+        if (snapshot == null) return null;
+        int count = snapshot.ids.length;
+        if (limit >= 0 && limit < count) count = limit;
+        return new MirrorCursor(snapshot, columns, projection, 0, count);
+    }
+
+    /**
+     * Returns a cursor over the movie with the given _ID, which is empty if there is no such
+     * movie, or null if the read has to go to SQLite instead.
+     */
+    Cursor queryById(SQLiteDatabase db, String[] projection, long id) {
+        int[] columns = mapColumns(projection);
+        if (columns == null) return null;
+        Snapshot snapshot = getSnapshot(db);
+        if (snapshot == null) return null;
+        int index = Arrays.binarySearch(snapshot.ids, id);
+        return new MirrorCursor(snapshot, columns, projection, Math.max(index, 0),
+                index >= 0 ? 1 : 0);
+    }
+
+    /**
+     * Sets the rating of one movie in the database and then in the copy, and returns the number
+     * of rows updated. Must not be called inside a transaction, which could still roll back.
+     *
+     * The two happen under one lock, so that two ratings for the same movie reach the copy in the
+     * order they were committed. The generation moves on before the write as well as after it,
+     * so a copy whose load started before the write is never kept, and one loaded while the write
+     * was in progress, which may or may not have seen it, only is if it has the rating applied on
+     * top.
+     */
+    int updateRating(MovieStatements statements, long id, int rating) {
+        synchronized (mWriteLock) {
+            synchronized (this) {
+                mGeneration++;
+            }
+            int numberUpdated = statements.updateRatingById(id, rating);
+            if (numberUpdated != 0) {
+                setRating(id, rating);
+            }
+            return numberUpdated;
+        }
+    }
+
+    /**
+     * Applies a committed change of one movie's rating to the copy, if there is one.
+     */
+    private synchronized void setRating(long id, int rating) {
+        mGeneration++;
+        if (mSnapshot == null) return;
+        int index = Arrays.binarySearch(mSnapshot.ids, id);
+        if (index < 0) {
+            mSnapshot = null;
+            return;
+        }
+        byte[] ratings = mSnapshot.ratings.clone();
+        ratings[index] = (byte) rating;
+        mSnapshot = new Snapshot(mSnapshot.ids, ratings, mSnapshot.titles, mSnapshot.titleStarts);
+    }
+
+    /**
+     * Drops the copy, after any write other than
+     * {@link #updateRating(MovieStatements, long, int)} has committed.
+     */
+    synchronized void invalidate() {
+        mGeneration++;
+        mSnapshot = null;
+    }
+
+    /**
+     * Returns the indices of the projected columns, or null if the projection asks for anything
+     * but the columns of the table.
+     */
+    private static int[] mapColumns(String[] projection) {
+        if (projection == null) projection = ALL_COLUMNS;
+        int[] columns = new int[projection.length];
+        for (int i = 0; i < projection.length; i++) {
+            if (Movie._ID.equals(projection[i])) {
+                columns[i] = COLUMN_ID;
+            } else if (Movie.TITLE.equals(projection[i])) {
+                columns[i] = COLUMN_TITLE;
+            } else if (Movie.RATING.equals(projection[i])) {
+                columns[i] = COLUMN_RATING;
+            } else {
+                return null;
+            }
+        }
+        return columns;
+    }
+
+    /**
+     * Returns the current copy, loading it if there is none, or null if the table is over budget.
+     */
+    private Snapshot getSnapshot(SQLiteDatabase db) {
+        synchronized (this) {
+            if (mSnapshot != null) return mSnapshot;
+            if (mTooBigGeneration == mGeneration) return null;
+        }
+        synchronized (mLoadLock) {
+            long generation;
+            synchronized (this) {
+                // Another thread may have loaded it while this one waited.
+                if (mSnapshot != null) return mSnapshot;
+                if (mTooBigGeneration == mGeneration) return null;
+                generation = mGeneration;
+            }
+            Snapshot snapshot = load(db);
+            synchronized (this) {
+                // Don't keep a copy that a write may already have made out of date.
+                if (generation == mGeneration) {
+                    if (snapshot == null) {
+                        mTooBigGeneration = generation;
+                    } else {
+                        mSnapshot = snapshot;
+                    }
+                }
+            }
+            return snapshot;
+        }
+    }
+
+    /**
+     * Reads the whole table into a new copy, or returns null as soon as it is clear that it will
+     * not fit in the budget. The number of movies comes from the summary table first, so a table
+     * that is far too big costs nothing to turn down.
+     */
+    private Snapshot load(SQLiteDatabase db) {
+        long movies = DatabaseUtils.longForQuery(db, "SELECT SUM(" +
+                TomatilloDBHelper.STATS_COUNT + ") FROM " + TomatilloDBHelper.STATS_TABLE_NAME,
+                null);
+        if (movies * ROW_SIZE > mMaxSize) return null;
+
+        Cursor cursor = db.query(Movie.TABLE_NAME, ALL_COLUMNS, null, null, null, null,
+                Movie._ID);
+        try {
+            int count = cursor.getCount();
+            long rowsSize = (long) count * ROW_SIZE;
+            if (rowsSize > mMaxSize) return null;
+
+            long[] ids = new long[count];
+            byte[] ratings = new byte[count];
+            int[] titleStarts = new int[count + 1];
+            char[] titles = new char[Math.max(count * 16, 16)];
+            int length = 0;
+            CharArrayBuffer title = new CharArrayBuffer(64);
+            for (int i = 0; cursor.moveToNext(); i++) {
+                ids[i] = cursor.getLong(COLUMN_ID);
+                ratings[i] = (byte) cursor.getInt(COLUMN_RATING);
+                cursor.copyStringToBuffer(COLUMN_TITLE, title);
+                if (rowsSize + 2L * (length + title.sizeCopied) > mMaxSize) return null;
+                if (length + title.sizeCopied > titles.length) {
+                    titles = Arrays.copyOf(titles,
+                            Math.max(2 * titles.length, length + title.sizeCopied));
+                }
+                System.arraycopy(title.data, 0, titles, length, title.sizeCopied);
+                titleStarts[i] = length;
+                length += title.sizeCopied;
+            }
+            titleStarts[count] = length;
+            return new Snapshot(ids, ratings, Arrays.copyOf(titles, length), titleStarts);
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * A read-only cursor over a range of rows of a copy.
+     */
+    private static final class MirrorCursor extends AbstractCursor {
+        private final Snapshot mSnapshot;
+        private final int[] mColumns;
+        private final String[] mColumnNames;
+        private final int mFirst;
+        private final int mCount;
+
+        MirrorCursor(Snapshot snapshot, int[] columns, String[] columnNames, int first,
+                     int count) {
+            mSnapshot = snapshot;
+            mColumns = columns;
+            mColumnNames = columnNames != null ? columnNames : ALL_COLUMNS;
+            mFirst = first;
+            mCount = count;
+        }
+
+        private int row() {
+            return mFirst + getPosition();
+        }
+
+        @Override
+        public int getCount() {
+            return mCount;
+        }
+
+        @Override
+        public String[] getColumnNames() {
+            return mColumnNames;
+        }
+
+        @Override
+        public String getString(int column) {
+            switch (mColumns[column]) {
+                case COLUMN_ID: {
+                    return Long.toString(mSnapshot.ids[row()]);
+                }
+                case COLUMN_RATING: {
+                    return Integer.toString(mSnapshot.ratings[row()]);
+                }
+                default: {
+                    int start = mSnapshot.titleStarts[row()];
+                    return new String(mSnapshot.titles, start,
+                            mSnapshot.titleStarts[row() + 1] - start);
+                }
+            }
+        }
+
+        /**
+         * Copies the value without making a String of it first.
+         */
+        @Override
+        public void copyStringToBuffer(int column, CharArrayBuffer buffer) {
+            if (mColumns[column] != COLUMN_TITLE) {
+                super.copyStringToBuffer(column, buffer);
+                return;
+            }
+            int start = mSnapshot.titleStarts[row()];
+            int length = mSnapshot.titleStarts[row() + 1] - start;
+            if (buffer.data == null || buffer.data.length < length) {
+                buffer.data = new char[length];
+            }
+            System.arraycopy(mSnapshot.titles, start, buffer.data, 0, length);
+            buffer.sizeCopied = length;
+        }
+
+        @Override
+        public short getShort(int column) {
+            return (short) getLong(column);
+        }
+
+        @Override
+        public int getInt(int column) {
+            return (int) getLong(column);
+        }
+
+        @Override
+        public long getLong(int column) {
+            switch (mColumns[column]) {
+                case COLUMN_ID: {
+                    return mSnapshot.ids[row()];
+                }
+                case COLUMN_RATING: {
+                    return mSnapshot.ratings[row()];
+                }
+                default: {
+                    // Like SQLite, reads the number the title starts with, or 0.
+                    return QueryCache.toLong(getString(column));
+                }
+            }
+        }
+
+        @Override
+        public float getFloat(int column) {
+            return (float) getDouble(column);
+        }
+
+        @Override
+        public double getDouble(int column) {
+            if (mColumns[column] == COLUMN_TITLE) {
+                return QueryCache.toDouble(getString(column));
+            }
+            return getLong(column);
+        }
+
+        @Override
+        public int getType(int column) {
+            return mColumns[column] == COLUMN_TITLE ? FIELD_TYPE_STRING : FIELD_TYPE_INTEGER;
+        }
+
+        @Override
+        public boolean isNull(int column) {
+            return false;
+        }
+    }
+}
@@ -0,0 +1,110 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package android.example.com.rottentomatillos.data;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteCursor;
+import android.database.sqlite.SQLiteCursorDriver;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteQuery;
+import android.database.sqlite.SQLiteStatement;
+import android.example.com.rottentomatillos.data.TomatilloContract.Movie;
+import android.os.Build;
+
+/**
+ * Precompiled statements for the single-movie operations {@link TomatilloProvider} runs most:
+ * looking a movie up, setting its rating and deleting it, all by _ID. The write statements are
+ * compiled once for the database they belong to, and every statement is bound with typed values,
+ * instead of building the SQL and a String[] of arguments and compiling them again for every
+ * call.
+ *
+ * A statement can only be bound and run by one thread at a time, so each one is used under its
+ * own lock. Writes are serialized by SQLite anyway.
+ */
+class MovieStatements {
+
+    /**
+     * The columns returned by {@link #queryById(long)}.
+     */
+    static final String[] COLUMNS = new String[] { Movie._ID, Movie.TITLE, Movie.RATING };
+
+    /**
+     * Looks a movie up by _ID. Cursors cannot come from a SQLiteStatement, but since the SQL is
+     * always the same string, SQLite reuses the statement it compiled for it the last time, from
+     * the prepared statement cache of the connection. The _ID is bound as a long by the
+     * CursorFactory, which gets the query before it runs.
+     */
+    private static final String QUERY_BY_ID = "SELECT " + Movie._ID + ", " + Movie.TITLE + ", " +
+            Movie.RATING + " FROM " + Movie.TABLE_NAME + " WHERE " + Movie._ID + " = ?";
+
+    private final SQLiteDatabase mDb;
+    private final SQLiteStatement mUpdateRating;
+    private final SQLiteStatement mDelete;
+
+    MovieStatements(SQLiteDatabase db) {
+        mDb = db;
+        mUpdateRating = db.compileStatement("UPDATE " + Movie.TABLE_NAME + " SET " +
+                Movie.RATING + " = ? WHERE " + Movie._ID + " = ?");
+        mDelete = db.compileStatement("DELETE FROM " + Movie.TABLE_NAME + " WHERE " +
+                Movie._ID + " = ?");
+    }
+
+    /**
+     * Whether the statements were compiled for the given database.
+     */
+    boolean belongsTo(SQLiteDatabase db) {
+        return mDb == db;
+    }
+
+    /**
+     * Returns a cursor over {@link #COLUMNS} of the movie with the given _ID.
+     */
+    Cursor queryById(final long id) {
+        return mDb.rawQueryWithFactory(new SQLiteDatabase.CursorFactory() {
+            @Override
+            @SuppressWarnings("deprecation")
+            public Cursor newCursor(SQLiteDatabase db, SQLiteCursorDriver driver,
+                                    String editTable, SQLiteQuery query) {
+                query.bindLong(1, id);
+                if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB) {
+                    return new SQLiteCursor(driver, editTable, query);
+                }
+                return new SQLiteCursor(db, driver, editTable, query);
+            }
+        }, QUERY_BY_ID, null, null);
+    }
+
+    /**
+     * Sets the rating of the movie with the given _ID and returns the number of rows updated.
+     */
+    int updateRatingById(long id, int rating) {
+        synchronized (mUpdateRating) {
+            mUpdateRating.bindLong(1, rating);
+            mUpdateRating.bindLong(2, id);
+            return TomatilloProvider.executeUpdateDelete(mDb, mUpdateRating);
+        }
+    }
+
+    /**
+     * Deletes the movie with the given _ID and returns the number of rows deleted.
+     */
+    int deleteById(long id) {
+        synchronized (mDelete) {
+            mDelete.bindLong(1, id);
+            return TomatilloProvider.executeUpdateDelete(mDb, mDelete);
+        }
+    }
+}
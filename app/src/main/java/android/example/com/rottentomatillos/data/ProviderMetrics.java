@@ -0,0 +1,260 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package android.example.com.rottentomatillos.data;
+
+import android.database.Cursor;
+import android.database.CursorWrapper;
+import android.net.Uri;
+import android.os.Bundle;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Records how often each {@link TomatilloProvider} operation is called, how long it takes and
+ * how many rows it touches, and keeps a log of the slowest calls.
+ *
+ * Recording a call costs two System.nanoTime() calls and a few atomic increments, and takes no
+ * lock unless the call was slow, so the metrics are always on.
+ */
+class ProviderMetrics {
+    private static final String LOG_TAG = ProviderMetrics.class.getSimpleName();
+
+    static final int OP_QUERY = 0;
+    static final int OP_INSERT = 1;
+    static final int OP_BULK_INSERT = 2;
+    static final int OP_UPDATE = 3;
+    static final int OP_DELETE = 4;
+    static final int OP_GET_TYPE = 5;
+
+    /**
+     * The Bundle key of each operation, indexed by its OP_ constant.
+     */
+    private static final String[] OP_NAMES = new String[] {
+            "query", "insert", "bulk_insert", "update", "delete", "get_type" };
+
+    /**
+     * The number of latency histogram buckets, see
+     * {@link TomatilloContract#EXTRA_LATENCY_HISTOGRAM}.
+     */
+    private static final int HISTOGRAM_BUCKETS = 24;
+
+    /**
+     * The number of slow calls kept in the log. Older ones are dropped.
+     */
+    private static final int SLOW_LOG_SIZE = 20;
+
+    private static final class OpStats {
+        final AtomicLong count = new AtomicLong();
+        final AtomicLong totalMicros = new AtomicLong();
+        final AtomicLong maxMicros = new AtomicLong();
+        final AtomicLong rows = new AtomicLong();
+        final AtomicLongArray histogram = new AtomicLongArray(HISTOGRAM_BUCKETS);
+
+        void reset() {
+            count.set(0);
+            totalMicros.set(0);
+            maxMicros.set(0);
+            rows.set(0);
+            for (int i = 0; i < HISTOGRAM_BUCKETS; i++) {
+                histogram.set(i, 0);
+            }
+        }
+    }
+
+    private final OpStats[] mStats = new OpStats[OP_NAMES.length];
+    private final long mSlowMicros;
+
+    // The most recent slow calls, oldest first. Guarded by itself.
+    private final LinkedList<String> mSlowLog = new LinkedList<String>();
+
+    /**
+     * @param slowMillis calls that take at least this long go in the slow call log.
+     */
+    ProviderMetrics(long slowMillis) {
+        mSlowMicros = slowMillis * 1000;
+        for (int i = 0; i < mStats.length; i++) {
+            mStats[i] = new OpStats();
+        }
+    }
+
+    /**
+     * Records a call to an operation.
+     *
+     * @param op one of the OP_ constants.
+     * @param uri the Uri the operation was called with.
+     * @param startNanos the value of System.nanoTime() when the call started.
+     * @param rows the number of rows the call returned or changed, or -1 if they are counted
+     *             later.
+     */
+    void record(int op, Uri uri, long startNanos, int rows) {
+        long micros = (System.nanoTime() - startNanos) / 1000;
+        OpStats stats = mStats[op];
+        stats.count.incrementAndGet();
+        stats.totalMicros.addAndGet(micros);
+        if (rows > 0) {
+            stats.rows.addAndGet(rows);
+        }
+        stats.histogram.incrementAndGet(bucket(micros));
+
+        long max = stats.maxMicros.get();
+        while (micros > max && !stats.maxMicros.compareAndSet(max, micros)) {
+            max = stats.maxMicros.get();
+        }
+
+        if (micros >= mSlowMicros) {
+            String entry = OP_NAMES[op] + " " + uri + " took " + (micros / 1000) + " ms, " +
+                    (rows >= 0 ? rows + " rows, " : "") + "at " + System.currentTimeMillis();
+            Log.w(LOG_TAG, "Slow call: " + entry);
+            synchronized (mSlowLog) {
+                if (mSlowLog.size() == SLOW_LOG_SIZE) {
+                    mSlowLog.removeFirst();
+                }
+                mSlowLog.addLast(entry);
+            }
+        }
+    }
+
+    /**
+     * Records a query that returned the cursor, and returns the cursor to hand to the caller.
+     * The rows are counted once the caller runs the query, by reading the cursor or asking for
+     * its count. Counting them here would run the query inside the provider call even for a
+     * caller that never reads it, and make the call look that much slower.
+     */
+    Cursor recordQuery(Uri uri, long startNanos, Cursor cursor) {
+        record(OP_QUERY, uri, startNanos, -1);
+        return new CountingCursor(cursor, mStats[OP_QUERY]);
+    }
+
+    /**
+     * Adds the rows of the cursor it wraps to the metrics of an operation, the first time the
+     * cursor is moved or asked for its count. Either one has run the query by then, so counting
+     * the rows costs nothing more.
+     */
+    private static final class CountingCursor extends CursorWrapper {
+        private final OpStats mStats;
+        private boolean mCounted;
+
+        CountingCursor(Cursor cursor, OpStats stats) {
+            super(cursor);
+            mStats = stats;
+        }
+
+        private void countRows() {
+            if (mCounted) return;
+            mCounted = true;
+            mStats.rows.addAndGet(super.getCount());
+        }
+
+        @Override
+        public int getCount() {
+            countRows();
+            return super.getCount();
+        }
+
+        @Override
+        public boolean move(int offset) {
+            boolean moved = super.move(offset);
+            countRows();
+            return moved;
+        }
+
+        @Override
+        public boolean moveToPosition(int position) {
+            boolean moved = super.moveToPosition(position);
+            countRows();
+            return moved;
+        }
+
+        @Override
+        public boolean moveToFirst() {
+            boolean moved = super.moveToFirst();
+            countRows();
+            return moved;
+        }
+
+        @Override
+        public boolean moveToLast() {
+            boolean moved = super.moveToLast();
+            countRows();
+            return moved;
+        }
+
+        @Override
+        public boolean moveToNext() {
+            boolean moved = super.moveToNext();
+            countRows();
+            return moved;
+        }
+
+        @Override
+        public boolean moveToPrevious() {
+            boolean moved = super.moveToPrevious();
+            countRows();
+            return moved;
+        }
+    }
+
+    /**
+     * Returns the histogram bucket for a latency: 0 for less than a microsecond, and bucket i for
+     * at least 2^(i-1) and less than 2^i microseconds. The last bucket also holds everything
+     * slower.
+     */
+    private static int bucket(long micros) {
+        return Math.min(64 - Long.numberOfLeadingZeros(micros), HISTOGRAM_BUCKETS - 1);
+    }
+
+    /**
+     * Returns the metrics in the form described by {@link TomatilloContract#METHOD_METRICS}.
+     */
+    Bundle toBundle() {
+        Bundle result = new Bundle();
+        for (int op = 0; op < mStats.length; op++) {
+            OpStats stats = mStats[op];
+            Bundle bundle = new Bundle();
+            bundle.putLong(TomatilloContract.EXTRA_COUNT, stats.count.get());
+            bundle.putLong(TomatilloContract.EXTRA_TOTAL_MICROS, stats.totalMicros.get());
+            bundle.putLong(TomatilloContract.EXTRA_MAX_MICROS, stats.maxMicros.get());
+            bundle.putLong(TomatilloContract.EXTRA_ROWS, stats.rows.get());
+            long[] histogram = new long[HISTOGRAM_BUCKETS];
+            for (int i = 0; i < HISTOGRAM_BUCKETS; i++) {
+                histogram[i] = stats.histogram.get(i);
+            }
+            bundle.putLongArray(TomatilloContract.EXTRA_LATENCY_HISTOGRAM, histogram);
+            result.putBundle(OP_NAMES[op], bundle);
+        }
+        synchronized (mSlowLog) {
+            result.putStringArrayList(TomatilloContract.EXTRA_SLOW_CALLS,
+                    new ArrayList<String>(mSlowLog));
+        }
+        return result;
+    }
+
+    /**
+     * Clears every count and the slow call log.
+     */
+    void reset() {
+        for (OpStats stats : mStats) {
+            stats.reset();
+        }
+        synchronized (mSlowLog) {
+            mSlowLog.clear();
+        }
+    }
+}
@@ -0,0 +1,377 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package android.example.com.rottentomatillos.data;
+
+import android.database.AbstractCursor;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.Build;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * An in-memory cache of query results for {@link TomatilloProvider}, bounded by an estimate of
+ * the memory the results take up and evicting the least recently used result first.
+ *
+ * Every result is stored with the write generation it was read at. The provider moves to a new
+ * generation after every write, and a result from an older generation counts as a miss, so one
+ * write invalidates the whole cache without having to work out which results it affected.
+ */
+class QueryCache {
+
+    /**
+     * Rough per-object costs used to estimate the size of a cached result, in bytes.
+     */
+    private static final int ROW_OVERHEAD = 32;
+    private static final int CELL_OVERHEAD = 16;
+    private static final int STRING_OVERHEAD = 40;
+
+    /**
+     * Matches the number at the start of a string, which is what SQLite reads when a TEXT value
+     * is asked for as an INTEGER or a REAL. A string that does not start with one reads as 0.
+     */
+    private static final Pattern NUMBER_PREFIX =
+            Pattern.compile("^\\s*([+-]?(?:\\d+\\.?\\d*|\\.\\d+)(?:[eE][+-]?\\d+)?)");
+
+    /**
+     * A cached result. The values are never changed once stored, so any number of cursors can
+     * read them at once.
+     */
+    private static final class Entry {
+        final long generation;
+        final String[] columns;
+        final Object[][] rows;
+        final int size;
+
+        Entry(long generation, String[] columns, Object[][] rows, int size) {
+            this.generation = generation;
+            this.columns = columns;
+            this.rows = rows;
+            this.size = size;
+        }
+    }
+
+    private final int mMaxSize;
+    private final AtomicLong mGeneration = new AtomicLong();
+
+    // Guarded by this. An access-ordered LinkedHashMap iterates from least to most recently used.
+    private final LinkedHashMap<String, Entry> mEntries =
+            new LinkedHashMap<String, Entry>(16, 0.75f, true);
+    private int mSize;
+    private long mHits;
+    private long mMisses;
+
+    /**
+     * Creates a cache that holds at most about maxSize bytes of results.
+     */
+    QueryCache(int maxSize) {
+        mMaxSize = maxSize;
+    }
+
+    /**
+     * Builds the key under which the result of a query is cached.
+     */
+    static String buildKey(Uri uri, String[] projection, String selection,
+                           String[] selectionArgs, String sortOrder) {
+        StringBuilder key = new StringBuilder();
+        appendKeyPart(key, uri.toString());
+        if (projection == null) {
+            key.append('*');
+        } else {
+            key.append(projection.length).append('[');
+            for (String column : projection) {
+                appendKeyPart(key, column);
+            }
+        }
+        appendKeyPart(key, selection);
+        if (selectionArgs == null) {
+            key.append('*');
+        } else {
+            key.append(selectionArgs.length).append('[');
+            for (String arg : selectionArgs) {
+                appendKeyPart(key, arg);
+            }
+        }
+        appendKeyPart(key, sortOrder);
+        return key.toString();
+    }
+
+    /**
+     * Appends a length-prefixed string, so that no two different queries build the same key.
+     */
+    private static void appendKeyPart(StringBuilder key, String part) {
+        if (part == null) {
+            key.append('-');
+        } else {
+            key.append(part.length()).append(':').append(part);
+        }
+    }
+
+    /**
+     * Returns the current write generation. Read it before running a query whose result is going
+     * to be stored with {@link #put(String, long, Cursor)}.
+     */
+    long getGeneration() {
+        return mGeneration.get();
+    }
+
+    /**
+     * Moves to a new write generation, which invalidates every cached result. Call after every
+     * write has been committed.
+     */
+    void invalidate() {
+        mGeneration.incrementAndGet();
+    }
+
+    /**
+     * Returns a cursor over the cached result for the key, or null if there is no result from
+     * the current generation.
+     */
+    synchronized Cursor get(String key) {
+        Entry entry = mEntries.get(key);
+        if (entry != null && entry.generation != mGeneration.get()) {
+            removeEntry(key, entry);
+            entry = null;
+        }
+        if (entry == null) {
+            mMisses++;
+            return null;
+        }
+        mHits++;
+        return new CachedCursor(entry);
+    }
+
+    /**
+     * Stores the result of a query that was run at the given generation, if it is small enough,
+     * and returns the cursor to give back to the caller. That is either a cursor over the cached
+     * copy, in which case the original cursor has been closed, or the original cursor itself.
+     */
+    Cursor put(String key, long generation, Cursor cursor) {
+        // A single result may take at most a quarter of the cache, so that one big table scan
+        // cannot push everything else out.
+        int maxEntrySize = mMaxSize / 4;
+        int count = cursor.getCount();
+        String[] columns = cursor.getColumnNames();
+        if ((long) count * (ROW_OVERHEAD + CELL_OVERHEAD * columns.length) > maxEntrySize) {
+            return cursor;
+        }
+
+        Object[][] rows = new Object[count][];
+        int size = 0;
+        cursor.moveToPosition(-1);
+        for (int i = 0; cursor.moveToNext(); i++) {
+            Object[] row = new Object[columns.length];
+            size += ROW_OVERHEAD + CELL_OVERHEAD * columns.length;
+            for (int column = 0; column < columns.length; column++) {
+                row[column] = readValue(cursor, column);
+                if (row[column] instanceof String) {
+                    size += STRING_OVERHEAD + 2 * ((String) row[column]).length();
+                }
+            }
+            rows[i] = row;
+            if (size > maxEntrySize) {
+                cursor.moveToPosition(-1);
+                return cursor;
+            }
+        }
+        cursor.close();
+
+        Entry entry = new Entry(generation, columns, rows, size);
+        synchronized (this) {
+            // Don't cache a result that is already out of date.
+            if (generation == mGeneration.get()) {
+                Entry old = mEntries.put(key, entry);
+                if (old != null) mSize -= old.size;
+                mSize += size;
+                trimToSize();
+            }
+        }
+        return new CachedCursor(entry);
+    }
+
+    synchronized long getHitCount() {
+        return mHits;
+    }
+
+    synchronized long getMissCount() {
+        return mMisses;
+    }
+
+    synchronized int getEntryCount() {
+        return mEntries.size();
+    }
+
+    /**
+     * Returns the estimated size of the cached results, in bytes.
+     */
+    synchronized int getSize() {
+        return mSize;
+    }
+
+    /**
+     * Evicts the least recently used results until the cache fits in its budget.
+     */
+    private void trimToSize() {
+        Iterator<Map.Entry<String, Entry>> it = mEntries.entrySet().iterator();
+        while (mSize > mMaxSize && it.hasNext()) {
+            mSize -= it.next().getValue().size;
+            it.remove();
+        }
+    }
+
+    private void removeEntry(String key, Entry entry) {
+        mEntries.remove(key);
+        mSize -= entry.size;
+    }
+
+    /**
+     * Reads a value from the cursor as a Long, Double, String, byte[] or null. Before Honeycomb
+     * cursors cannot report the type of a value, so every value is read as a String; the cached
+     * cursor converts it back when it is read as a number.
+     */
+    private static Object readValue(Cursor cursor, int column) {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.HONEYCOMB) {
+            return cursor.getString(column);
+        }
+        switch (cursor.getType(column)) {
+            case Cursor.FIELD_TYPE_NULL:
+                return null;
+            case Cursor.FIELD_TYPE_INTEGER:
+                return cursor.getLong(column);
+            case Cursor.FIELD_TYPE_FLOAT:
+                return cursor.getDouble(column);
+            case Cursor.FIELD_TYPE_BLOB:
+                return cursor.getBlob(column);
+            default:
+                return cursor.getString(column);
+        }
+    }
+
+    /**
+     * Reads a value that is not a number as an integer, the way SQLite does. Also used by
+     * {@link MovieMirror} for titles.
+     */
+    static long toLong(Object value) {
+        if (!(value instanceof String)) return 0;
+        Matcher number = NUMBER_PREFIX.matcher((String) value);
+        if (!number.find()) return 0;
+        String digits = number.group(1);
+        if (digits.indexOf('.') < 0 && digits.indexOf('e') < 0 && digits.indexOf('E') < 0) {
+            try {
+                // Parsed as a long, not a double, so that large _IDs keep every digit.
+                return Long.parseLong(digits.charAt(0) == '+' ? digits.substring(1) : digits);
+            } catch (NumberFormatException e) {
+                // Too big for a long; the double below saturates.
+            }
+        }
+        return (long) Double.parseDouble(digits);
+    }
+
+    /**
+     * Reads a value that is not a number as a floating-point number, the way SQLite does.
+     */
+    static double toDouble(Object value) {
+        if (!(value instanceof String)) return 0;
+        Matcher number = NUMBER_PREFIX.matcher((String) value);
+        return number.find() ? Double.parseDouble(number.group(1)) : 0;
+    }
+
+    /**
+     * A read-only cursor over a cached result.
+     */
+    private static final class CachedCursor extends AbstractCursor {
+        private final Entry mEntry;
+
+        CachedCursor(Entry entry) {
+            mEntry = entry;
+        }
+
+        private Object get(int column) {
+            return mEntry.rows[getPosition()][column];
+        }
+
+        @Override
+        public int getCount() {
+            return mEntry.rows.length;
+        }
+
+        @Override
+        public String[] getColumnNames() {
+            return mEntry.columns;
+        }
+
+        @Override
+        public String getString(int column) {
+            Object value = get(column);
+            return value == null ? null : value.toString();
+        }
+
+        @Override
+        public short getShort(int column) {
+            return (short) getLong(column);
+        }
+
+        @Override
+        public int getInt(int column) {
+            return (int) getLong(column);
+        }
+
+        @Override
+        public long getLong(int column) {
+            Object value = get(column);
+            if (value instanceof Number) return ((Number) value).longValue();
+            return toLong(value);
+        }
+
+        @Override
+        public float getFloat(int column) {
+            return (float) getDouble(column);
+        }
+
+        @Override
+        public double getDouble(int column) {
+            Object value = get(column);
+            if (value instanceof Number) return ((Number) value).doubleValue();
+            return toDouble(value);
+        }
+
+        @Override
+        public byte[] getBlob(int column) {
+            Object value = get(column);
+            return value instanceof byte[] ? (byte[]) value : super.getBlob(column);
+        }
+
+        @Override
+        public int getType(int column) {
+            Object value = get(column);
+            if (value == null) return FIELD_TYPE_NULL;
+            if (value instanceof Long) return FIELD_TYPE_INTEGER;
+            if (value instanceof Double) return FIELD_TYPE_FLOAT;
+            if (value instanceof byte[]) return FIELD_TYPE_BLOB;
+            return FIELD_TYPE_STRING;
+        }
+
+        @Override
+        public boolean isNull(int column) {
+            return get(column) == null;
+        }
+    }
+}
@@ -0,0 +1,183 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package android.example.com.rottentomatillos.data;
+
+import android.content.ContentProviderOperation;
+import android.content.ContentResolver;
+import android.content.ContentUris;
+import android.content.OperationApplicationException;
+import android.example.com.rottentomatillos.data.TomatilloContract.Movie;
+import android.os.Build;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.RemoteException;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Collects the ratings the user sets and writes them to {@link TomatilloProvider} a window at a
+ * time. Dragging across a RatingBar sets a rating for every star it passes, but only the last
+ * rating set for each movie within the window is written. The ratings of a window are written
+ * together on a background thread, in one call, so they cost one transaction and one change
+ * notification.
+ *
+ * Pending ratings are written when the window closes or when {@link #flush()} is called, which
+ * should be done when the activity pauses.
+ */
+public class RatingWriteQueue {
+    private static final String LOG_TAG = RatingWriteQueue.class.getSimpleName();
+
+    /**
+     * The default time between the first rating of a window and writing the window out.
+     */
+    public static final long DEFAULT_WINDOW_MILLIS = 300;
+
+    /**
+     * Writes happen on one thread shared by every queue, so that ratings are written in the order
+     * they were set even if the queue that set them has been replaced, as on rotation.
+     */
+    private static final ExecutorService sWriteExecutor = Executors.newSingleThreadExecutor();
+
+    /**
+     * Told on the main thread when ratings have been written, or could not be.
+     */
+    public interface Listener {
+        void onRatingsWritten(long[] ids, int[] ratings);
+
+        /**
+         * The ratings were not written, and the ones in the provider are unchanged.
+         */
+        void onRatingsFailed(long[] ids, int[] ratings);
+    }
+
+    private final ContentResolver mResolver;
+    private final long mWindowMillis;
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private Listener mListener;
+
+    // The latest rating set for each movie since the last flush. Guarded by this.
+    private final Map<Long, Integer> mPending = new LinkedHashMap<Long, Integer>();
+
+    private final Runnable mFlush = new Runnable() {
+        @Override
+        public void run() {
+            flush();
+        }
+    };
+
+    public RatingWriteQueue(ContentResolver resolver, long windowMillis) {
+        mResolver = resolver;
+        mWindowMillis = windowMillis;
+    }
+
+    public void setListener(Listener listener) {
+        mListener = listener;
+    }
+
+    /**
+     * Queues the rating for the movie, replacing any rating for it that has not been written yet.
+     */
+    public synchronized void setRating(long id, int rating) {
+        if (mPending.isEmpty()) {
+            mHandler.postDelayed(mFlush, mWindowMillis);
+        }
+        mPending.put(id, rating);
+    }
+
+    /**
+     * Starts writing every pending rating now rather than when the window closes.
+     */
+    public void flush() {
+        mHandler.removeCallbacks(mFlush);
+
+        final long[] ids;
+        final int[] ratings;
+        synchronized (this) {
+            if (mPending.isEmpty()) return;
+            ids = new long[mPending.size()];
+            ratings = new int[ids.length];
+            int i = 0;
+            for (Map.Entry<Long, Integer> entry : mPending.entrySet()) {
+                ids[i] = entry.getKey();
+                ratings[i] = entry.getValue();
+                i++;
+            }
+            mPending.clear();
+        }
+
+        sWriteExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                final boolean written = write(ids, ratings);
+                mHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (mListener == null) return;
+                        if (written) {
+                            mListener.onRatingsWritten(ids, ratings);
+                        } else {
+                            mListener.onRatingsFailed(ids, ratings);
+                        }
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Writes the ratings in one call and returns whether that succeeded. Runs on the write
+     * thread.
+     */
+    private boolean write(long[] ids, int[] ratings) {
+        try {
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB) {
+                Bundle extras = new Bundle();
+                extras.putLongArray(TomatilloContract.EXTRA_IDS, ids);
+                extras.putIntArray(TomatilloContract.EXTRA_RATINGS, ratings);
+                mResolver.call(Movie.CONTENT_URI, TomatilloContract.METHOD_UPDATE_RATINGS, null,
+                        extras);
+                return true;
+            }
+
+            // ContentResolver.call() needs API 11, so older versions send a batch of updates.
+            ArrayList<ContentProviderOperation> operations =
+                    new ArrayList<ContentProviderOperation>(ids.length);
+            for (int i = 0; i < ids.length; i++) {
+                operations.add(ContentProviderOperation
+                        .newUpdate(ContentUris.withAppendedId(Movie.CONTENT_URI, ids[i]))
+                        .withValue(Movie.RATING, ratings[i])
+                        .build());
+            }
+            mResolver.applyBatch(TomatilloContract.CONTENT_AUTHORITY, operations);
+            return true;
+        } catch (RemoteException e) {
+            Log.e(LOG_TAG, "Could not write " + ids.length + " ratings", e);
+        } catch (OperationApplicationException e) {
+            Log.e(LOG_TAG, "Could not write " + ids.length + " ratings", e);
+        } catch (RuntimeException e) {
+            // Such as a SQLiteException, or an IllegalArgumentException for a bad rating. Left
+            // to escape, it would crash the app from the write thread.
+            Log.e(LOG_TAG, "Could not write " + ids.length + " ratings", e);
+        }
+        return false;
+    }
+}
@@ -34,6 +34,129 @@ public class TomatilloContract {
      */
     public static final Uri BASE_CONTENT_URI = Uri.parse("content://" + CONTENT_AUTHORITY);
 
+    /**
+     * Provider method that upserts movies, for use with ContentResolver.call(). Pass the movies as
+     * a ContentValues array under {@link #EXTRA_VALUES}. The returned Bundle holds the number of
+     * rows inserted under {@link #EXTRA_INSERTED} and updated under {@link #EXTRA_UPDATED}.
+     */
+    public static final String METHOD_UPSERT = "upsert";
+
+    /**
+     * Provider method that sets the ratings of many movies at once, in one transaction. Pass the
+     * _IDs of the movies as a long array under {@link #EXTRA_IDS} and their new ratings, from 1
+     * to 5, as an int array of the same length under {@link #EXTRA_RATINGS}. The returned Bundle
+     * holds the number of rows updated under {@link #EXTRA_UPDATED}. If any rating is out of
+     * range, nothing is updated.
+     */
+    public static final String METHOD_UPDATE_RATINGS = "update_ratings";
+
+    /**
+     * Provider method that deletes a set of movies, in one transaction. Pass their _IDs as a long
+     * array under {@link #EXTRA_IDS}; _IDs of movies that are not there are ignored. The returned
+     * Bundle holds the number of rows deleted under {@link #EXTRA_DELETED}. There is no limit on
+     * the number of _IDs other than the size of a binder transaction.
+     */
+    public static final String METHOD_DELETE_IDS = "delete_ids";
+
+    /**
+     * Provider method that sets the same values on a set of movies, in one transaction. Pass
+     * their _IDs as a long array under {@link #EXTRA_IDS} and the new title or rating as a
+     * ContentValues under {@link #EXTRA_VALUE}. The returned Bundle holds the number of rows
+     * updated under {@link #EXTRA_UPDATED}.
+     */
+    public static final String METHOD_UPDATE_IDS = "update_ids";
+
+    /**
+     * Provider method that returns the statistics of the query result cache: the number of hits
+     * under {@link #EXTRA_HITS} and misses under {@link #EXTRA_MISSES}, and the number of cached
+     * results under {@link #EXTRA_ENTRIES} and their estimated size in bytes under
+     * {@link #EXTRA_SIZE}. The Bundle is empty if the cache is turned off.
+     */
+    public static final String METHOD_QUERY_CACHE_STATS = "query_cache_stats";
+
+    /**
+     * Provider method that returns the metrics the provider has recorded since it started or
+     * since {@link #METHOD_METRICS_RESET}. The returned Bundle holds a Bundle for each operation,
+     * under "query", "insert", "bulk_insert", "update", "delete" and "get_type", with the number
+     * of calls under {@link #EXTRA_COUNT}, their total and longest latency under
+     * {@link #EXTRA_TOTAL_MICROS} and {@link #EXTRA_MAX_MICROS}, the number of rows they returned
+     * or changed under {@link #EXTRA_ROWS} and a latency histogram under
+     * {@link #EXTRA_LATENCY_HISTOGRAM}. The rows of a query are counted once its cursor is read,
+     * and its latency leaves out running the query where that waits for the first read. The
+     * most recent slow calls are described under {@link #EXTRA_SLOW_CALLS}.
+     */
+    public static final String METHOD_METRICS = "metrics";
+
+    /**
+     * Provider method that clears the metrics returned by {@link #METHOD_METRICS}.
+     */
+    public static final String METHOD_METRICS_RESET = "metrics_reset";
+
+    /**
+     * Bundle key for a ContentValues array passed to a provider method.
+     */
+    public static final String EXTRA_VALUES = "values";
+
+    /**
+     * Bundle key for a single ContentValues passed to a provider method.
+     */
+    public static final String EXTRA_VALUE = "value";
+
+    /**
+     * Bundle key for a long array of movie _IDs passed to a provider method.
+     */
+    public static final String EXTRA_IDS = "ids";
+
+    /**
+     * Bundle key for an int array of ratings passed to a provider method.
+     */
+    public static final String EXTRA_RATINGS = "ratings";
+
+    /**
+     * Bundle key for the number of rows a provider method inserted.
+     */
+    public static final String EXTRA_INSERTED = "inserted";
+
+    /**
+     * Bundle key for the number of rows a provider method updated.
+     */
+    public static final String EXTRA_UPDATED = "updated";
+
+    /**
+     * Bundle key for the number of rows a provider method deleted.
+     */
+    public static final String EXTRA_DELETED = "deleted";
+
+    /**
+     * Bundle keys for the query cache statistics.
+     */
+    public static final String EXTRA_HITS = "hits";
+    public static final String EXTRA_MISSES = "misses";
+    public static final String EXTRA_ENTRIES = "entries";
+    public static final String EXTRA_SIZE = "size";
+
+    /**
+     * Bundle keys for the metrics of one provider operation.
+     */
+    public static final String EXTRA_COUNT = "count";
+    public static final String EXTRA_TOTAL_MICROS = "total_micros";
+    public static final String EXTRA_MAX_MICROS = "max_micros";
+    public static final String EXTRA_ROWS = "rows";
+
+    /**
+     * Bundle key for the latency histogram of one provider operation, a long array. Element 0
+     * counts the calls that took less than a microsecond, and element i the calls that took at
+     * least 2^(i-1) and less than 2^i microseconds; the last element also counts every slower
+     * call.
+     */
+    public static final String EXTRA_LATENCY_HISTOGRAM = "latency_histogram";
+
+    /**
+     * Bundle key for the descriptions of the most recent calls slower than the
+     * provider_slow_call_millis resource, a String ArrayList, oldest first.
+     */
+    public static final String EXTRA_SLOW_CALLS = "slow_calls";
+
     public static final class Movie implements BaseColumns{
         /**
          * Name of the Movie table.
@@ -58,6 +181,72 @@ public class TomatilloContract {
         public static final Uri CONTENT_URI =
                 BASE_CONTENT_URI.buildUpon().appendPath(TABLE_NAME).build();
 
+        /**
+         * Query parameter for {@link #CONTENT_URI}. When it is "true", insert and bulkInsert
+         * update the rating of movies whose title is already in the database, instead of
+         * skipping them. bulkInsert then returns the number of rows inserted or updated.
+         */
+        public static final String QUERY_PARAMETER_UPSERT = "upsert";
+
+        /**
+         * Path segment for full-text title searches, see {@link #buildSearchUri(String, int)}.
+         */
+        public static final String PATH_SEARCH = "search";
+
+        /**
+         * Path segment for the movie statistics, see {@link MovieStats}.
+         */
+        public static final String PATH_STATS = "stats";
+
+        /**
+         * Path segment for streamed imports, see {@link MovieImport}.
+         */
+        public static final String PATH_IMPORT = "import";
+
+        /**
+         * Path segment for the binary export of the movie table, see {@link MovieExport}.
+         */
+        public static final String PATH_EXPORT = "export";
+
+        /**
+         * Path segment for the log of changes to the movie table, see {@link MovieChanges}.
+         */
+        public static final String PATH_CHANGES = "changes";
+
+        /**
+         * Query parameter holding the maximum number of rows to return.
+         */
+        public static final String QUERY_PARAMETER_LIMIT = "limit";
+
+        /**
+         * Query parameter naming the column that a page of movies is sorted by: {@link #_ID},
+         * {@link #TITLE} or {@link #RATING}. Rows with the same value are ordered by _ID.
+         * Sorting by any of them is served from an index, so together with a limit the cost of
+         * a query does not grow with the table.
+         */
+        public static final String QUERY_PARAMETER_SORT_KEY = "sort_key";
+
+        /**
+         * Query parameter that, when "true", sorts a page of movies from the highest value of the
+         * sort key down. Rows with the same value are then ordered by descending _ID.
+         */
+        public static final String QUERY_PARAMETER_DESCENDING = "descending";
+
+        /**
+         * Query parameter holding the lowest rating to return, from 1 to 5.
+         */
+        public static final String QUERY_PARAMETER_MIN_RATING = "min_rating";
+
+        /**
+         * Query parameter holding the sort key value of the last row of the previous page.
+         */
+        public static final String QUERY_PARAMETER_AFTER_KEY = "after_key";
+
+        /**
+         * Query parameter holding the _ID of the last row of the previous page.
+         */
+        public static final String QUERY_PARAMETER_AFTER_ID = "after_id";
+
         /**
          * The MIME type for a list of movie ratings.
          */
@@ -68,5 +257,365 @@ public class TomatilloContract {
          */
         public static final String CONTENT_ITEM_TYPE =
                 "vnd.android.cursor.item/" + CONTENT_AUTHORITY + "/" + TABLE_NAME;
+
+        /**
+         * Builds the Uri used to insert new movies and update the ratings of existing ones in one
+         * call.
+         */
+        public static Uri buildUpsertUri() {
+            return CONTENT_URI.buildUpon()
+                    .appendQueryParameter(QUERY_PARAMETER_UPSERT, "true")
+                    .build();
+        }
+
+        /**
+         * Builds the Uri for the first page of movies sorted by sortKey. To get the following
+         * page, pass the sort key value and _ID of the last row of this page to
+         * {@link #buildPageUri(String, int, String, long)}.
+         *
+         * Pages are found by key (keyset pagination) rather than by offset, so each page costs
+         * the same however far into the table it is.
+         */
+        public static Uri buildPageUri(String sortKey, int pageSize) {
+            return CONTENT_URI.buildUpon()
+                    .appendQueryParameter(QUERY_PARAMETER_SORT_KEY, sortKey)
+                    .appendQueryParameter(QUERY_PARAMETER_LIMIT, String.valueOf(pageSize))
+                    .build();
+        }
+
+        /**
+         * Builds the Uri for the page of movies sorted by sortKey that comes after the row with
+         * the given sort key value and _ID.
+         */
+        public static Uri buildPageUri(String sortKey, int pageSize, String afterKey,
+                                       long afterId) {
+            return buildPageUri(sortKey, pageSize).buildUpon()
+                    .appendQueryParameter(QUERY_PARAMETER_AFTER_KEY, afterKey)
+                    .appendQueryParameter(QUERY_PARAMETER_AFTER_ID, String.valueOf(afterId))
+                    .build();
+        }
+
+        /**
+         * Builds the Uri for the first page of movies sorted by sortKey, from the highest value
+         * down if descending is true.
+         */
+        public static Uri buildPageUri(String sortKey, boolean descending, int pageSize) {
+            return buildPageUri(sortKey, pageSize).buildUpon()
+                    .appendQueryParameter(QUERY_PARAMETER_DESCENDING, String.valueOf(descending))
+                    .build();
+        }
+
+        /**
+         * Builds the Uri for the page of movies sorted by sortKey, from the highest value down if
+         * descending is true, that comes after the row with the given sort key value and _ID.
+         */
+        public static Uri buildPageUri(String sortKey, boolean descending, int pageSize,
+                                       String afterKey, long afterId) {
+            return buildPageUri(sortKey, descending, pageSize).buildUpon()
+                    .appendQueryParameter(QUERY_PARAMETER_AFTER_KEY, afterKey)
+                    .appendQueryParameter(QUERY_PARAMETER_AFTER_ID, String.valueOf(afterId))
+                    .build();
+        }
+
+        /**
+         * Builds the Uri for the limit best rated movies, best first.
+         */
+        public static Uri buildTopRatedUri(int limit) {
+            return buildPageUri(RATING, true, limit);
+        }
+
+        /**
+         * Builds the Uri for the limit best rated movies that have at least minRating, best
+         * first. Pass a large limit to get all of them.
+         */
+        public static Uri buildTopRatedUri(int minRating, int limit) {
+            return buildTopRatedUri(limit).buildUpon()
+                    .appendQueryParameter(QUERY_PARAMETER_MIN_RATING, String.valueOf(minRating))
+                    .build();
+        }
+
+        /**
+         * Builds the Uri for the page of movies sorted by _ID that comes after the row with the
+         * given _ID, or the first page if afterId is -1.
+         */
+        public static Uri buildPageUri(int pageSize, long afterId) {
+            if (afterId == -1) {
+                return buildPageUri(_ID, pageSize);
+            }
+            return buildPageUri(_ID, pageSize, String.valueOf(afterId), afterId);
+        }
+
+        /**
+         * Builds the Uri for a full-text search of movie titles. Every word in the query has to
+         * appear in the title, either whole or as the start of a word, so "sun spot" finds
+         * "Eternal Sunshine of the Spotless Mind". Unless the query gives a sort order, the
+         * closest matches come first.
+         */
+        public static Uri buildSearchUri(String query) {
+            return CONTENT_URI.buildUpon().appendPath(PATH_SEARCH).appendPath(query).build();
+        }
+
+        /**
+         * Builds the Uri for a full-text search of movie titles that returns at most limit rows.
+         */
+        public static Uri buildSearchUri(String query, int limit) {
+            return buildSearchUri(query).buildUpon()
+                    .appendQueryParameter(QUERY_PARAMETER_LIMIT, String.valueOf(limit))
+                    .build();
+        }
+    }
+
+    /**
+     * Statistics about the ratings in the movie table. Querying {@link #CONTENT_URI} returns a
+     * single row. The statistics are kept up to date as movies are written, so reading them costs
+     * the same however many movies there are.
+     */
+    public static final class MovieStats {
+        /**
+         * Uri for the movie statistics.
+         */
+        public static final Uri CONTENT_URI =
+                Movie.CONTENT_URI.buildUpon().appendPath(Movie.PATH_STATS).build();
+
+        /**
+         * The MIME type of the movie statistics.
+         */
+        public static final String CONTENT_ITEM_TYPE =
+                "vnd.android.cursor.item/" + CONTENT_AUTHORITY + "/" + Movie.TABLE_NAME + "_" +
+                        Movie.PATH_STATS;
+
+        /**
+         * The number of movies.
+         * <P>Type: INTEGER</P>
+         */
+        public static final String COUNT = "count";
+
+        /**
+         * The average rating of all movies, or null if there are none.
+         * <P>Type: REAL</P>
+         */
+        public static final String AVERAGE_RATING = "average_rating";
+
+        /**
+         * Returns the name of the column holding the number of movies with the given rating,
+         * from 1 to 5.
+         * <P>Type: INTEGER</P>
+         */
+        public static String ratingCountColumn(int rating) {
+            return "rating_" + rating + "_count";
+        }
+    }
+
+    /**
+     * Streamed imports of movies. Open the Uri from {@link #buildImportUri(String, String,
+     * boolean)} with ContentResolver.openFileDescriptor(uri, "w") and write the movies to the
+     * returned file descriptor, which is a pipe; closing it ends the import. The provider parses
+     * the stream as it arrives and commits it {@link #CHUNK_SIZE} movies at a time, so an import
+     * of any size takes the same amount of memory and never has to fit in one binder
+     * transaction.
+     *
+     * Querying the same Uri returns one row with the progress of the import, or no rows if there
+     * has been no import by that name. Observers of the Uri are notified as each chunk commits and
+     * when the import ends.
+     */
+    public static final class MovieImport {
+        /**
+         * Base Uri for imports.
+         */
+        public static final Uri CONTENT_URI =
+                Movie.CONTENT_URI.buildUpon().appendPath(Movie.PATH_IMPORT).build();
+
+        /**
+         * The MIME type of the progress of an import.
+         */
+        public static final String CONTENT_ITEM_TYPE =
+                "vnd.android.cursor.item/" + CONTENT_AUTHORITY + "/" + Movie.TABLE_NAME + "_" +
+                        Movie.PATH_IMPORT;
+
+        /**
+         * Query parameter naming the format of the stream: {@link #FORMAT_CSV} or
+         * {@link #FORMAT_NDJSON}.
+         */
+        public static final String QUERY_PARAMETER_FORMAT = "format";
+
+        /**
+         * One movie per line, as rating,title. The rating comes first so that titles may contain
+         * commas. Blank lines and lines starting with # are skipped.
+         */
+        public static final String FORMAT_CSV = "csv";
+
+        /**
+         * One JSON object per line, with "title" and "rating" members. Blank lines are skipped.
+         */
+        public static final String FORMAT_NDJSON = "ndjson";
+
+        /**
+         * The number of movies committed in each transaction.
+         */
+        public static final int CHUNK_SIZE = 500;
+
+        /**
+         * The state of the import: {@link #STATUS_RUNNING}, {@link #STATUS_DONE} or
+         * {@link #STATUS_FAILED}.
+         * <P>Type: TEXT</P>
+         */
+        public static final String STATUS = "status";
+
+        /**
+         * The number of movies read from the stream and committed so far.
+         * <P>Type: INTEGER</P>
+         */
+        public static final String ROWS_READ = "rows_read";
+
+        /**
+         * The number of movies inserted so far.
+         * <P>Type: INTEGER</P>
+         */
+        public static final String INSERTED = "inserted";
+
+        /**
+         * The number of existing movies whose rating was updated so far, by an upsert import.
+         * <P>Type: INTEGER</P>
+         */
+        public static final String UPDATED = "updated";
+
+        /**
+         * The number of movies skipped so far, because they could not be parsed, had no title or
+         * a rating outside 1 to 5, or, unless the import is an upsert, were already there.
+         * <P>Type: INTEGER</P>
+         */
+        public static final String SKIPPED = "skipped";
+
+        /**
+         * Why the import failed, or null.
+         * <P>Type: TEXT</P>
+         */
+        public static final String ERROR = "error";
+
+        public static final String STATUS_RUNNING = "running";
+        public static final String STATUS_DONE = "done";
+        public static final String STATUS_FAILED = "failed";
+
+        /**
+         * Builds the Uri for the import with the given name, which the caller chooses and uses to
+         * follow its progress. If upsert is true, movies that are already in the database have
+         * their rating updated, otherwise they are skipped.
+         */
+        public static Uri buildImportUri(String name, String format, boolean upsert) {
+            Uri.Builder builder = CONTENT_URI.buildUpon()
+                    .appendPath(name)
+                    .appendQueryParameter(QUERY_PARAMETER_FORMAT, format);
+            if (upsert) {
+                builder.appendQueryParameter(Movie.QUERY_PARAMETER_UPSERT, "true");
+            }
+            return builder.build();
+        }
+    }
+
+    /**
+     * A binary dump of the whole movie table, for other processes that need every row. Open
+     * {@link #CONTENT_URI} with ContentResolver.openFileDescriptor(uri, "r") and read the
+     * returned pipe, most easily with {@link MovieExportReader}. The rows are streamed as they
+     * are read from the database instead of being copied into CursorWindows and sent over binder
+     * a window at a time.
+     *
+     * The stream is a sequence of records in _ID order, each made of the length in bytes of the
+     * UTF-8 title as a big-endian int, the title itself, the rating as an int and the _ID as a
+     * long. A length of {@link #END_OF_EXPORT} ends the stream, so a reader can tell a complete
+     * export from one that was cut short.
+     */
+    public static final class MovieExport {
+        /**
+         * Uri for the export.
+         */
+        public static final Uri CONTENT_URI =
+                Movie.CONTENT_URI.buildUpon().appendPath(Movie.PATH_EXPORT).build();
+
+        /**
+         * The MIME type of the export.
+         */
+        public static final String CONTENT_TYPE =
+                "application/vnd." + CONTENT_AUTHORITY + "." + Movie.TABLE_NAME + "_" +
+                        Movie.PATH_EXPORT;
+
+        /**
+         * The title length that marks the end of the export.
+         */
+        public static final int END_OF_EXPORT = -1;
+    }
+
+    /**
+     * The changes made to the movie table, for consumers that keep their own copy of it and want
+     * to catch up without reading every movie again. Every insert, update and delete is logged
+     * with a sequence number that only ever grows. Query the Uri from
+     * {@link #buildChangesUri(long)} with the highest {@link #SEQ} seen so far, starting from 0,
+     * to get the movies that changed since, in {@link #SEQ} order. A movie that changed more than
+     * once appears once, with its latest change. A deleted movie comes back as a tombstone: an
+     * {@link #OP_DELETE} row with its _ID and a null title and rating. Observers of
+     * {@link Movie#CONTENT_URI} are notified when there are new changes.
+     *
+     * The log is compacted as it grows. If changes a consumer has not seen yet were dropped, or
+     * the consumer starts from 0, the result is instead an {@link #OP_RESET} row followed by every
+     * movie as an {@link #OP_INSERT} row. The consumer should then throw its copy away and rebuild
+     * it from those rows.
+     */
+    public static final class MovieChanges implements BaseColumns {
+        /**
+         * Base Uri for the change log.
+         */
+        public static final Uri CONTENT_URI =
+                Movie.CONTENT_URI.buildUpon().appendPath(Movie.PATH_CHANGES).build();
+
+        /**
+         * The MIME type of a list of changes.
+         */
+        public static final String CONTENT_DIR_TYPE =
+                "vnd.android.cursor.dir/" + CONTENT_AUTHORITY + "/" + Movie.TABLE_NAME + "_" +
+                        Movie.PATH_CHANGES;
+
+        /**
+         * Query parameter holding the sequence number after which changes are returned.
+         */
+        public static final String QUERY_PARAMETER_SINCE = "since";
+
+        /**
+         * The sequence number of the change. Pass the highest one seen as the since parameter of
+         * the next query.
+         * <P>Type: INTEGER</P>
+         */
+        public static final String SEQ = "seq";
+
+        /**
+         * What the change was: {@link #OP_RESET}, {@link #OP_INSERT}, {@link #OP_UPDATE} or
+         * {@link #OP_DELETE}. {@link #_ID} is the _ID of the movie that changed.
+         * <P>Type: INTEGER</P>
+         */
+        public static final String OP = "op";
+
+        /**
+         * The title of the movie, or null for a deleted movie.
+         * <P>Type: TEXT</P>
+         */
+        public static final String TITLE = Movie.TITLE;
+
+        /**
+         * The rating of the movie, or null for a deleted movie.
+         * <P>Type: INTEGER</P>
+         */
+        public static final String RATING = Movie.RATING;
+
+        public static final int OP_RESET = 0;
+        public static final int OP_INSERT = 1;
+        public static final int OP_UPDATE = 2;
+        public static final int OP_DELETE = 3;
+
+        /**
+         * Builds the Uri for the changes made after the given sequence number.
+         */
+        public static Uri buildChangesUri(long since) {
+            return CONTENT_URI.buildUpon()
+                    .appendQueryParameter(QUERY_PARAMETER_SINCE, Long.toString(since))
+                    .build();
+        }
     }
 }
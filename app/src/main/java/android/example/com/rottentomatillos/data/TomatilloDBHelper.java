@@ -16,10 +16,23 @@
 package android.example.com.rottentomatillos.data;
 
 import android.content.Context;
+import android.content.res.Resources;
+import android.database.DatabaseUtils;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
+import android.example.com.rottentomatillos.R;
+import android.os.Build;
+import android.text.TextUtils;
 import android.util.Log;
 import android.example.com.rottentomatillos.data.TomatilloContract.Movie;
+import android.example.com.rottentomatillos.data.TomatilloContract.MovieChanges;
+import android.example.com.rottentomatillos.data.TomatilloContract.MovieImport;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+
 /**
  * This helps organize database versions and gives easy access to a
  * SQLiteDatabase object.
@@ -29,16 +42,201 @@ public class TomatilloDBHelper extends SQLiteOpenHelper {
 
     /**
      * Stores the current version of the database, starting at one. If you change the database schema,
-     * you must increment the database version.
+     * you must increment the database version and add a step for the new version to
+     * {@link #migrateTo(SQLiteDatabase, int)}.
+     *
+     * 1: the movie table.
+     * 2: the full-text index over titles.
+     * 3: the rating summary table.
+     * 4: movie _IDs are AUTOINCREMENT, so the _ID of a deleted movie is never given to another.
+     * 5: covering indexes for sorting movies by rating and by title.
+     * 6: the change log.
      * */
-    private static final int DATABASE_VERSION = 1;
+    private static final int DATABASE_VERSION = 6;
     /**
      * The name of the sqlite database file on the device
      */
     private static final String DATABASE_NAME = "tomatillo_database.db";
 
+    /**
+     * The name of the full-text index over movie titles. It is an FTS3 virtual table whose docid
+     * is the _id of the movie, and it is kept in sync with the movie table by triggers.
+     */
+    static final String FTS_TABLE_NAME = "movie_fts";
+
+    /**
+     * The name of the summary table behind the movie statistics. It holds one row per rating from
+     * 1 to 5 with the number of movies that have that rating, kept up to date by triggers.
+     */
+    static final String STATS_TABLE_NAME = "movie_stats";
+
+    /**
+     * Columns of the summary table.
+     */
+    static final String STATS_RATING = "rating";
+    static final String STATS_COUNT = "count";
+
+    /**
+     * The name of the change log behind {@link MovieChanges}. Triggers on the movie table add a
+     * row for every insert, update and delete, and {@link #compactChanges(SQLiteDatabase, int)}
+     * keeps it from growing without bound.
+     */
+    static final String CHANGES_TABLE_NAME = "movie_changes";
+
+    /**
+     * Columns of the change log. The sequence number is AUTOINCREMENT, so it never goes back,
+     * even after the latest changes are compacted away.
+     */
+    static final String CHANGES_SEQ = MovieChanges.SEQ;
+    static final String CHANGES_MOVIE_ID = "movie_id";
+    static final String CHANGES_OP = MovieChanges.OP;
+
+    /**
+     * The movie _ID of the {@link MovieChanges#OP_RESET} row that marks where the change log was
+     * cut off. It is always the oldest row in the log.
+     */
+    static final long CHANGES_RESET_MOVIE_ID = -1;
+
+    /**
+     * The suffix of the table a table is copied into while it is rebuilt. While a table with this
+     * suffix exists, the rebuild has not finished.
+     */
+    private static final String REBUILD_SUFFIX = "_rebuild";
+
+    /**
+     * The number of rows a rebuild copies in each transaction.
+     */
+    private static final int REBUILD_BATCH_SIZE = 10 * 1000;
+
+    /**
+     * Connection settings applied every time the database is opened. Most callers get these from
+     * the db_* resources (see res/values/database.xml); tests and benchmarks build their own.
+     */
+    public static class Options {
+        /**
+         * Whether to open the database in write-ahead logging mode. With WAL, readers use their
+         * own connections and are not blocked by a write transaction in progress.
+         */
+        public boolean writeAheadLogging;
+
+        /**
+         * The value for PRAGMA synchronous (OFF, NORMAL, FULL or EXTRA), or null to keep the
+         * SQLite default.
+         */
+        public String synchronous;
+
+        /**
+         * The page size in bytes, or 0 to keep the SQLite default. Only applies to a database
+         * that has not been created yet.
+         */
+        public int pageSize;
+
+        /**
+         * The value for PRAGMA cache_size (pages if positive, KiB if negative), or 0 to keep
+         * the SQLite default.
+         */
+        public int cacheSize;
+
+        /**
+         * The asset holding the movies to insert when the database is created, or null to create
+         * it empty. The asset is in the {@link MovieImport#FORMAT_CSV} format.
+         */
+        public String seedAsset;
+
+        /**
+         * Reads the options from the db_* resources.
+         */
+        public static Options fromResources(Resources res) {
+            Options options = new Options();
+            options.writeAheadLogging = res.getBoolean(R.bool.db_write_ahead_logging);
+            String synchronous = res.getString(R.string.db_synchronous);
+            options.synchronous = TextUtils.isEmpty(synchronous) ? null : synchronous;
+            options.pageSize = res.getInteger(R.integer.db_page_size);
+            options.cacheSize = res.getInteger(R.integer.db_cache_size);
+            String seedAsset = res.getString(R.string.db_seed_asset);
+            options.seedAsset = TextUtils.isEmpty(seedAsset) ? null : seedAsset;
+            return options;
+        }
+    }
+
+    private final Context mContext;
+    private final Options mOptions;
+
     public TomatilloDBHelper(Context context) {
-        super(context, DATABASE_NAME, null, DATABASE_VERSION);
+        this(context, DATABASE_NAME, Options.fromResources(context.getResources()));
+    }
+
+    /**
+     * Creates a helper for a database with the given file name, opened with the given options.
+     */
+    public TomatilloDBHelper(Context context, String name, Options options) {
+        super(context, name, null, DATABASE_VERSION);
+        mContext = context.getApplicationContext();
+        mOptions = options;
+        checkSynchronous(options.synchronous);
+
+        // From Jelly Bean on, the helper itself switches the journal mode before the database is
+        // used, and SQLiteDatabase keeps a pool of reader connections for WAL databases.
+        if (options.writeAheadLogging && Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN) {
+            setWriteAheadLoggingEnabled(true);
+        }
+    }
+
+    /**
+     * Called on Jelly Bean and above before the database is created, upgraded or opened. The page
+     * size has to be set here, before the first table is written to the file.
+     */
+    @Override
+    public void onConfigure(SQLiteDatabase db) {
+        super.onConfigure(db);
+        applyPageSize(db);
+    }
+
+    /**
+     * Applies the connection settings that do not have to be in place before the schema is
+     * created. Note that cache_size is a per-connection setting, so it only applies to the
+     * primary connection and not to the pooled WAL reader connections.
+     */
+    @Override
+    public void onOpen(SQLiteDatabase db) {
+        super.onOpen(db);
+
+        // On Jelly Bean and above, write-ahead logging was already enabled by the constructor.
+        if (mOptions.writeAheadLogging && Build.VERSION.SDK_INT < Build.VERSION_CODES.JELLY_BEAN) {
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB) {
+                db.enableWriteAheadLogging();
+            } else {
+                Log.w(LOG_TAG, "Write-ahead logging needs API 11, using the rollback journal.");
+            }
+        }
+        if (mOptions.synchronous != null) {
+            db.execSQL("PRAGMA synchronous = " + mOptions.synchronous);
+        }
+        if (mOptions.cacheSize != 0) {
+            db.execSQL("PRAGMA cache_size = " + mOptions.cacheSize);
+        }
+
+        if (!db.isReadOnly() && tableExists(db, Movie.TABLE_NAME + REBUILD_SUFFIX)) {
+            finishMovieRebuild(db);
+        }
+    }
+
+    private void applyPageSize(SQLiteDatabase db) {
+        if (mOptions.pageSize > 0) {
+            db.setPageSize(mOptions.pageSize);
+        }
+    }
+
+    /**
+     * Throws IllegalArgumentException if the synchronous setting is not one SQLite knows.
+     */
+    private static void checkSynchronous(String synchronous) {
+        if (synchronous == null) return;
+        if (!synchronous.equalsIgnoreCase("OFF") && !synchronous.equalsIgnoreCase("NORMAL")
+                && !synchronous.equalsIgnoreCase("FULL")
+                && !synchronous.equalsIgnoreCase("EXTRA")) {
+            throw new IllegalArgumentException("Unknown synchronous setting: " + synchronous);
+        }
     }
 
     @Override
@@ -46,27 +244,341 @@ public class TomatilloDBHelper extends SQLiteOpenHelper {
         // Creates a database with a single table to store movie ratings.
         Log.i(LOG_TAG, "Bootstrapping database version: " + DATABASE_VERSION);
 
-        sqLiteDatabase.execSQL(
-                "CREATE TABLE " +Movie.TABLE_NAME + " (" +
-                        Movie._ID + " INTEGER PRIMARY KEY," +
+        // Before Jelly Bean there is no onConfigure, but the file is still empty at this point.
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.JELLY_BEAN) {
+            applyPageSize(sqLiteDatabase);
+        }
+
+        createMovieTable(sqLiteDatabase, Movie.TABLE_NAME);
+        createMovieIndexes(sqLiteDatabase);
+        createFtsTable(sqLiteDatabase);
+        createStatsTable(sqLiteDatabase);
+        createChangesTable(sqLiteDatabase);
+
+        if (mOptions.seedAsset != null) {
+            seedMovies(sqLiteDatabase, mOptions.seedAsset);
+        }
+    }
+
+    /**
+     * Inserts the movies from the seed asset. This runs once, inside the transaction that creates
+     * the database, on whichever thread first opens it; for the app that is the loader thread
+     * running the first query, so the main thread never waits for it. The asset is streamed
+     * through a {@link MovieImporter}, so a large seed set is never held in memory.
+     */
+    private void seedMovies(SQLiteDatabase db, String asset) {
+        MovieImporter importer = new MovieImporter(db, MovieImport.FORMAT_CSV, false,
+                MovieImport.CHUNK_SIZE);
+        BufferedReader reader = null;
+        try {
+            reader = new BufferedReader(
+                    new InputStreamReader(mContext.getAssets().open(asset), "UTF-8"));
+            importer.run(reader, null);
+        } catch (IOException e) {
+            // Keep whatever was read rather than failing to open the database.
+            Log.e(LOG_TAG, "Could not read seed asset " + asset, e);
+        } finally {
+            if (reader != null) {
+                try {
+                    reader.close();
+                } catch (IOException e) {
+                    // Nothing left to do with it.
+                }
+            }
+        }
+        Log.i(LOG_TAG, "Seeded " + importer.getInserted() + " movies from " + asset + ", skipped " +
+                importer.getSkipped());
+    }
+
+    /**
+     * Creates a table with the current schema of the movie table, under the given name.
+     */
+    private static void createMovieTable(SQLiteDatabase db, String name) {
+        db.execSQL(
+                "CREATE TABLE " + name + " (" +
+                        Movie._ID + " INTEGER PRIMARY KEY AUTOINCREMENT," +
                         Movie.TITLE + " TEXT UNIQUE NOT NULL, " +
                         Movie.RATING + " INTEGER NOT NULL " +
                         " );"
         );
     }
 
-    // This method is used if the schema of the table changes. In this simplified example, we are
-    // dropping (which completely deletes) the old data, before remaking the table with the new
-    // updated schema.
-    // Less destructive implementations could use alter table to save the current version of the
-    // table and then create the new, updated table and populate it with the old data.
+    /**
+     * Creates the indexes on the movie table. Each one holds every column a sorted query needs,
+     * so a query sorted by rating or title reads its rows straight out of the index, in order,
+     * and one with a limit stops after that many entries however large the table is.
+     *
+     * (rating, _id, title) serves the rating order, in which movies with the same rating are
+     * ordered by _ID, and ranges of ratings. (title, rating) serves the title order; titles are
+     * unique, so the title alone orders them, and the _ID is part of every index entry anyway.
+     */
+    private static void createMovieIndexes(SQLiteDatabase db) {
+        db.execSQL("CREATE INDEX IF NOT EXISTS " + Movie.TABLE_NAME + "_rating_index ON " +
+                Movie.TABLE_NAME + " (" + Movie.RATING + ", " + Movie._ID + ", " + Movie.TITLE +
+                ");");
+        db.execSQL("CREATE INDEX IF NOT EXISTS " + Movie.TABLE_NAME + "_title_index ON " +
+                Movie.TABLE_NAME + " (" + Movie.TITLE + ", " + Movie.RATING + ");");
+    }
+
+    /**
+     * Creates the full-text index over movie titles and the triggers that keep it in sync with
+     * the movie table. FTS3 is used rather than FTS4 because it is available on every API level
+     * the app supports.
+     */
+    private static void createFtsTable(SQLiteDatabase db) {
+        db.execSQL("CREATE VIRTUAL TABLE " + FTS_TABLE_NAME + " USING fts3(" + Movie.TITLE + ");");
+        createFtsTriggers(db);
+    }
+
+    /**
+     * Creates the triggers that keep the full-text index in sync with the movie table.
+     */
+    private static void createFtsTriggers(SQLiteDatabase db) {
+        db.execSQL("CREATE TRIGGER " + FTS_TABLE_NAME + "_insert AFTER INSERT ON " +
+                Movie.TABLE_NAME + " BEGIN " +
+                "INSERT INTO " + FTS_TABLE_NAME + " (docid, " + Movie.TITLE + ") " +
+                "VALUES (new." + Movie._ID + ", new." + Movie.TITLE + "); " +
+                "END;");
+        db.execSQL("CREATE TRIGGER " + FTS_TABLE_NAME + "_update AFTER UPDATE OF " +
+                Movie._ID + ", " + Movie.TITLE + " ON " + Movie.TABLE_NAME + " BEGIN " +
+                "DELETE FROM " + FTS_TABLE_NAME + " WHERE docid = old." + Movie._ID + "; " +
+                "INSERT INTO " + FTS_TABLE_NAME + " (docid, " + Movie.TITLE + ") " +
+                "VALUES (new." + Movie._ID + ", new." + Movie.TITLE + "); " +
+                "END;");
+        db.execSQL("CREATE TRIGGER " + FTS_TABLE_NAME + "_delete AFTER DELETE ON " +
+                Movie.TABLE_NAME + " BEGIN " +
+                "DELETE FROM " + FTS_TABLE_NAME + " WHERE docid = old." + Movie._ID + "; " +
+                "END;");
+    }
+
+    /**
+     * Creates the summary table behind the movie statistics and the triggers that keep it up to
+     * date, and fills it in from the movies already in the database.
+     */
+    private static void createStatsTable(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE " + STATS_TABLE_NAME + " (" +
+                STATS_RATING + " INTEGER PRIMARY KEY, " +
+                STATS_COUNT + " INTEGER NOT NULL DEFAULT 0);");
+        for (int rating = 1; rating <= 5; rating++) {
+            db.execSQL("INSERT INTO " + STATS_TABLE_NAME + " (" + STATS_RATING + ", " +
+                    STATS_COUNT + ") SELECT " + rating + ", COUNT(*) FROM " + Movie.TABLE_NAME +
+                    " WHERE " + Movie.RATING + " = " + rating + ";");
+        }
+        createStatsTriggers(db);
+    }
+
+    /**
+     * Creates the triggers that keep the summary table up to date.
+     */
+    private static void createStatsTriggers(SQLiteDatabase db) {
+        db.execSQL("CREATE TRIGGER " + STATS_TABLE_NAME + "_insert AFTER INSERT ON " +
+                Movie.TABLE_NAME + " BEGIN " +
+                "UPDATE " + STATS_TABLE_NAME + " SET " + STATS_COUNT + " = " + STATS_COUNT +
+                " + 1 WHERE " + STATS_RATING + " = new." + Movie.RATING + "; " +
+                "END;");
+        db.execSQL("CREATE TRIGGER " + STATS_TABLE_NAME + "_update AFTER UPDATE OF " +
+                Movie.RATING + " ON " + Movie.TABLE_NAME +
+                " WHEN old." + Movie.RATING + " != new." + Movie.RATING + " BEGIN " +
+                "UPDATE " + STATS_TABLE_NAME + " SET " + STATS_COUNT + " = " + STATS_COUNT +
+                " - 1 WHERE " + STATS_RATING + " = old." + Movie.RATING + "; " +
+                "UPDATE " + STATS_TABLE_NAME + " SET " + STATS_COUNT + " = " + STATS_COUNT +
+                " + 1 WHERE " + STATS_RATING + " = new." + Movie.RATING + "; " +
+                "END;");
+        db.execSQL("CREATE TRIGGER " + STATS_TABLE_NAME + "_delete AFTER DELETE ON " +
+                Movie.TABLE_NAME + " BEGIN " +
+                "UPDATE " + STATS_TABLE_NAME + " SET " + STATS_COUNT + " = " + STATS_COUNT +
+                " - 1 WHERE " + STATS_RATING + " = old." + Movie.RATING + "; " +
+                "END;");
+    }
+
+    /**
+     * Creates the change log and the triggers that write to it. The log starts with an
+     * {@link MovieChanges#OP_RESET} row, so that a consumer starting from scratch, or from before
+     * the log existed, reads every movie instead of only the ones changed since.
+     */
+    private static void createChangesTable(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE " + CHANGES_TABLE_NAME + " (" +
+                CHANGES_SEQ + " INTEGER PRIMARY KEY AUTOINCREMENT, " +
+                CHANGES_MOVIE_ID + " INTEGER NOT NULL, " +
+                CHANGES_OP + " INTEGER NOT NULL);");
+        db.execSQL("INSERT INTO " + CHANGES_TABLE_NAME + " (" + CHANGES_MOVIE_ID + ", " +
+                CHANGES_OP + ") VALUES (" + CHANGES_RESET_MOVIE_ID + ", " +
+                MovieChanges.OP_RESET + ");");
+        createChangesTriggers(db);
+    }
+
+    /**
+     * Creates the triggers that log the changes to the movie table. An update that leaves the row
+     * as it was, as an upsert of a rating that did not change does, is not logged. An update that
+     * changes the _ID is logged as a delete of the old _ID as well.
+     */
+    private static void createChangesTriggers(SQLiteDatabase db) {
+        final String insert = "INSERT INTO " + CHANGES_TABLE_NAME + " (" + CHANGES_MOVIE_ID +
+                ", " + CHANGES_OP + ") ";
+        db.execSQL("CREATE TRIGGER " + CHANGES_TABLE_NAME + "_insert AFTER INSERT ON " +
+                Movie.TABLE_NAME + " BEGIN " +
+                insert + "VALUES (new." + Movie._ID + ", " + MovieChanges.OP_INSERT + "); " +
+                "END;");
+        db.execSQL("CREATE TRIGGER " + CHANGES_TABLE_NAME + "_update AFTER UPDATE ON " +
+                Movie.TABLE_NAME + " WHEN old." + Movie._ID + " != new." + Movie._ID +
+                " OR old." + Movie.TITLE + " != new." + Movie.TITLE +
+                " OR old." + Movie.RATING + " != new." + Movie.RATING + " BEGIN " +
+                insert + "SELECT old." + Movie._ID + ", " + MovieChanges.OP_DELETE +
+                " WHERE old." + Movie._ID + " != new." + Movie._ID + "; " +
+                insert + "VALUES (new." + Movie._ID + ", " + MovieChanges.OP_UPDATE + "); " +
+                "END;");
+        db.execSQL("CREATE TRIGGER " + CHANGES_TABLE_NAME + "_delete AFTER DELETE ON " +
+                Movie.TABLE_NAME + " BEGIN " +
+                insert + "VALUES (old." + Movie._ID + ", " + MovieChanges.OP_DELETE + "); " +
+                "END;");
+    }
+
+    /**
+     * Compacts the change log, in one transaction. Only the latest change of each movie is ever
+     * read, so every older one is dropped first, which loses nothing. If more than maxChanges
+     * rows are left after that, the oldest are dropped too, and an {@link MovieChanges#OP_RESET}
+     * row takes the place of the newest one dropped, so that a consumer that had not seen them
+     * yet knows to start over.
+     */
+    static void compactChanges(SQLiteDatabase db, int maxChanges) {
+        long start = System.currentTimeMillis();
+        db.beginTransaction();
+        try {
+            db.execSQL("DELETE FROM " + CHANGES_TABLE_NAME + " WHERE " + CHANGES_SEQ +
+                    " NOT IN (SELECT MAX(" + CHANGES_SEQ + ") FROM " + CHANGES_TABLE_NAME +
+                    " GROUP BY " + CHANGES_MOVIE_ID + ")");
+            long changes = DatabaseUtils.queryNumEntries(db, CHANGES_TABLE_NAME);
+            if (changes > maxChanges) {
+                long cutoff = DatabaseUtils.longForQuery(db, "SELECT " + CHANGES_SEQ + " FROM " +
+                        CHANGES_TABLE_NAME + " ORDER BY " + CHANGES_SEQ + " LIMIT 1 OFFSET " +
+                        (changes - maxChanges - 1), null);
+                db.execSQL("DELETE FROM " + CHANGES_TABLE_NAME + " WHERE " + CHANGES_SEQ +
+                        " <= " + cutoff);
+                db.execSQL("INSERT INTO " + CHANGES_TABLE_NAME + " (" + CHANGES_SEQ + ", " +
+                        CHANGES_MOVIE_ID + ", " + CHANGES_OP + ") VALUES (" + cutoff + ", " +
+                        CHANGES_RESET_MOVIE_ID + ", " + MovieChanges.OP_RESET + ")");
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+        Log.i(LOG_TAG, "Compacted the change log in " + (System.currentTimeMillis() - start) +
+                " ms");
+    }
+
+    /**
+     * Brings the database up to date one version at a time, keeping every movie. SQLiteOpenHelper
+     * runs this in a single transaction, so if any step fails the database stays at oldVersion.
+     */
     @Override
-    public void onUpgrade(SQLiteDatabase sqLiteDatabase, int newVersion, int oldVersion) {
+    public void onUpgrade(SQLiteDatabase sqLiteDatabase, int oldVersion, int newVersion) {
+        for (int version = oldVersion + 1; version <= newVersion; version++) {
+            Log.i(LOG_TAG, "Upgrading database to version " + version);
+            migrateTo(sqLiteDatabase, version);
+        }
+    }
+
+    /**
+     * Runs the step that upgrades the database from version - 1 to version.
+     */
+    private void migrateTo(SQLiteDatabase db, int version) {
+        switch (version) {
+            case 2: {
+                createFtsTable(db);
+                db.execSQL("INSERT INTO " + FTS_TABLE_NAME + " (docid, " + Movie.TITLE + ") " +
+                        "SELECT " + Movie._ID + ", " + Movie.TITLE + " FROM " + Movie.TABLE_NAME);
+                break;
+            }
+            case 3: {
+                // Fills itself in from the movie table.
+                createStatsTable(db);
+                break;
+            }
+            case 4: {
+                // SQLite cannot add AUTOINCREMENT to an existing table, so the table is rebuilt.
+                // Only the new table is created here; the rows are copied once the upgrade has
+                // committed, see finishMovieRebuild().
+                createMovieTable(db, Movie.TABLE_NAME + REBUILD_SUFFIX);
+                break;
+            }
+            case 5: {
+                // A pending rebuild creates the indexes once its rows are copied, which is
+                // cheaper than keeping them up to date during the copy.
+                if (!tableExists(db, Movie.TABLE_NAME + REBUILD_SUFFIX)) {
+                    createMovieIndexes(db);
+                }
+                break;
+            }
+            case 6: {
+                // A pending rebuild creates the triggers again for the new table.
+                createChangesTable(db);
+                break;
+            }
+            default: {
+                throw new IllegalStateException("No migration to database version " + version);
+            }
+        }
+    }
 
-        Log.i(LOG_TAG,
-                String.format("Upgrading database from version %d to %d", oldVersion, newVersion));
-        sqLiteDatabase.execSQL("DROP TABLE IF EXISTS " + Movie.TABLE_NAME);
-        onCreate(sqLiteDatabase);
+    /**
+     * Finishes rebuilding the movie table into movie_rebuild, by copying the rows over in
+     * batches and then swapping the tables.
+     *
+     * Each batch is its own transaction, so a large table never needs one huge transaction and
+     * journal, and a rebuild that is interrupted carries on from the last committed batch the
+     * next time the database is opened. Nothing else can use the database while this runs, since
+     * it runs before the helper hands the database out. The full-text index and the summary table
+     * are keyed by _ID and rating, which the copy keeps, so only their triggers, which belong to
+     * the old table, have to be recreated, along with the indexes. The same goes for the change
+     * log, which needs no entries for the copy: it starts with a reset anyway.
+     */
+    private static void finishMovieRebuild(SQLiteDatabase db) {
+        final String rebuild = Movie.TABLE_NAME + REBUILD_SUFFIX;
+        final String columns = Movie._ID + ", " + Movie.TITLE + ", " + Movie.RATING;
+        long start = System.currentTimeMillis();
+
+        SQLiteStatement copy = db.compileStatement(
+                "INSERT INTO " + rebuild + " (" + columns + ") SELECT " + columns + " FROM " +
+                        Movie.TABLE_NAME + " WHERE " + Movie._ID + " > " +
+                        "(SELECT IFNULL(MAX(" + Movie._ID + "), -1) FROM " + rebuild + ")" +
+                        " ORDER BY " + Movie._ID + " LIMIT " + REBUILD_BATCH_SIZE);
+        long copied = 0;
+        try {
+            int count;
+            do {
+                db.beginTransaction();
+                try {
+                    count = TomatilloProvider.executeUpdateDelete(db, copy);
+                    db.setTransactionSuccessful();
+                } finally {
+                    db.endTransaction();
+                }
+                copied += count;
+            } while (count == REBUILD_BATCH_SIZE);
+        } finally {
+            copy.close();
+        }
+
+        db.beginTransaction();
+        try {
+            // Dropping the old table drops its triggers along with it.
+            db.execSQL("DROP TABLE " + Movie.TABLE_NAME);
+            db.execSQL("ALTER TABLE " + rebuild + " RENAME TO " + Movie.TABLE_NAME);
+            createMovieIndexes(db);
+            createFtsTriggers(db);
+            createStatsTriggers(db);
+            createChangesTriggers(db);
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+        Log.i(LOG_TAG, "Rebuilt the movie table, copying " + copied + " rows in " +
+                (System.currentTimeMillis() - start) + " ms");
+    }
 
+    private static boolean tableExists(SQLiteDatabase db, String name) {
+        return DatabaseUtils.longForQuery(db,
+                "SELECT COUNT(*) FROM sqlite_master WHERE type = 'table' AND name = ?",
+                new String[] { name }) > 0;
     }
 }
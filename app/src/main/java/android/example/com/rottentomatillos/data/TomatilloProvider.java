@@ -16,16 +16,46 @@
 package android.example.com.rottentomatillos.data;
 
 import android.content.ContentProvider;
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
 import android.content.ContentUris;
 import android.content.ContentValues;
+import android.content.OperationApplicationException;
 import android.content.UriMatcher;
 import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.MatrixCursor;
 import android.database.sqlite.SQLiteConstraintException;
 import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.example.com.rottentomatillos.R;
 import android.example.com.rottentomatillos.data.TomatilloContract.Movie;
+import android.example.com.rottentomatillos.data.TomatilloContract.MovieChanges;
+import android.example.com.rottentomatillos.data.TomatilloContract.MovieExport;
+import android.example.com.rottentomatillos.data.TomatilloContract.MovieImport;
+import android.example.com.rottentomatillos.data.TomatilloContract.MovieStats;
 import android.net.Uri;
+import android.os.Build;
+import android.os.Bundle;
+import android.os.ParcelFileDescriptor;
+import android.os.Parcelable;
+import android.text.TextUtils;
 import android.util.Log;
 
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.DataOutputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
 /**
  * This is a ContentProvider for the movie rating database. This content provider
  * works with {@link TomatilloContract} and {@link TomatilloDBHelper} to provide managed and secure
@@ -40,12 +70,131 @@ public class TomatilloProvider extends ContentProvider {
      */
     private TomatilloDBHelper mDBHelper;
 
+    /**
+     * Caches query results in memory, or null if the cache is turned off with the
+     * provider_query_cache_size resource.
+     */
+    private QueryCache mQueryCache;
+
+    /**
+     * Holds the movie table in memory to serve plain reads of it, or null if the mirror is turned
+     * off with the provider_mirror_size resource.
+     */
+    private MovieMirror mMirror;
+
+    /**
+     * Sends change notifications, merging them inside applyBatch and, if the
+     * provider_notification_delay resource is set, within that delay of each other.
+     */
+    private ChangeNotifier mNotifier;
+
+    /**
+     * Precompiled statements for single-movie operations, for the database they were compiled
+     * against. Replaced if the helper ever hands out a different database.
+     */
+    private volatile MovieStatements mStatements;
+
+    /**
+     * Records the latency and row counts of every call, see
+     * {@link TomatilloContract#METHOD_METRICS}.
+     */
+    private ProviderMetrics mMetrics;
+
+    /**
+     * The imports started since the provider was created, by name. Guarded by itself.
+     */
+    private final Map<String, MovieImporter> mImports = new HashMap<String, MovieImporter>();
+
+    /**
+     * The number of rows the change log keeps when it is compacted, from the
+     * provider_change_log_size resource.
+     */
+    private int mChangeLogSize;
+
+    /**
+     * The highest sequence number in the change log when it was last compacted. Guarded by
+     * mCompactLock, which also keeps two threads from compacting at once.
+     */
+    private long mCompactedSeq;
+    private final Object mCompactLock = new Object();
+
     // URI Matcher Codes
     private static final int MOVIE = 100;
     private static final int MOVIE_WITH_ID = 101;
+    private static final int MOVIE_SEARCH = 102;
+    private static final int MOVIE_STATS = 103;
+    private static final int MOVIE_IMPORT = 104;
+    private static final int MOVIE_EXPORT = 105;
+    private static final int MOVIE_CHANGES = 106;
 
     private static final UriMatcher sUriMatcher = buildUriMatcher();
 
+    /**
+     * Selects the movies whose title matches a full-text query, given as the one argument.
+     */
+    private static final String SEARCH_SELECTION = Movie._ID + " IN (SELECT docid FROM " +
+            TomatilloDBHelper.FTS_TABLE_NAME + " WHERE " + TomatilloDBHelper.FTS_TABLE_NAME +
+            " MATCH ?)";
+
+    /**
+     * The default order of search results. FTS3 has no relevance function on every API level the
+     * app supports, so results are ranked by title length: of the titles that contain all of the
+     * words searched for, the shortest ones are the closest matches.
+     */
+    private static final String SEARCH_RANK_ORDER =
+            "length(" + Movie.TITLE + "), " + Movie.TITLE;
+
+    /**
+     * Computes the movie statistics from the five rows of the summary table.
+     */
+    private static final String STATS_QUERY = buildStatsQuery();
+
+    /**
+     * Reads the changes made after the sequence number given as ?1, see {@link MovieChanges}.
+     */
+    private static final String CHANGES_QUERY = buildChangesQuery();
+
+    /**
+     * The default order of the changes.
+     */
+    private static final String CHANGES_ORDER = MovieChanges.SEQ + ", " + MovieChanges.OP;
+
+    /**
+     * Inserts one movie. "OR IGNORE" makes SQLite skip rows that break a constraint, such as a
+     * title that is already in the database or a missing title or rating, instead of failing.
+     */
+    static final String INSERT_OR_IGNORE_MOVIE =
+            "INSERT OR IGNORE INTO " + Movie.TABLE_NAME +
+                    " (" + Movie.TITLE + ", " + Movie.RATING + ") VALUES (?, ?)";
+
+    /**
+     * Sets the rating of the movie with the given title. Used by upserts after the insert was
+     * ignored because the title already exists.
+     */
+    static final String UPDATE_RATING_BY_TITLE =
+            "UPDATE " + Movie.TABLE_NAME + " SET " + Movie.RATING + " = ? WHERE " +
+                    Movie.TITLE + " = ?";
+
+    /**
+     * Sets the rating of the movie with the given _ID.
+     */
+    private static final String UPDATE_RATING_BY_ID =
+            "UPDATE " + Movie.TABLE_NAME + " SET " + Movie.RATING + " = ? WHERE " +
+                    Movie._ID + " = ?";
+
+    /**
+     * The most parameters a statement can have, SQLITE_MAX_VARIABLE_NUMBER in the SQLite builds
+     * that ship with Android.
+     */
+    private static final int MAX_BIND_ARGS = 999;
+
+    /**
+     * applyBatch gives waiting readers a chance to get at the database at least this often, in
+     * addition to wherever an operation allows it with withYieldAllowed().
+     */
+    private static final int BATCH_YIELD_INTERVAL = 100;
+
+
     /**
      * Builds a UriMatcher object for the movie database URIs.
      */
@@ -59,32 +208,211 @@ public class TomatilloProvider extends ContentProvider {
         // Need your content authority.
         matcher.addURI(TomatilloContract.CONTENT_AUTHORITY, Movie.TABLE_NAME, MOVIE);
         matcher.addURI(TomatilloContract.CONTENT_AUTHORITY, Movie.TABLE_NAME + "/#", MOVIE_WITH_ID);
+        matcher.addURI(TomatilloContract.CONTENT_AUTHORITY,
+                Movie.TABLE_NAME + "/" + Movie.PATH_SEARCH + "/*", MOVIE_SEARCH);
+        matcher.addURI(TomatilloContract.CONTENT_AUTHORITY,
+                Movie.TABLE_NAME + "/" + Movie.PATH_STATS, MOVIE_STATS);
+        matcher.addURI(TomatilloContract.CONTENT_AUTHORITY,
+                Movie.TABLE_NAME + "/" + Movie.PATH_IMPORT + "/*", MOVIE_IMPORT);
+        matcher.addURI(TomatilloContract.CONTENT_AUTHORITY,
+                Movie.TABLE_NAME + "/" + Movie.PATH_EXPORT, MOVIE_EXPORT);
+        matcher.addURI(TomatilloContract.CONTENT_AUTHORITY,
+                Movie.TABLE_NAME + "/" + Movie.PATH_CHANGES, MOVIE_CHANGES);
 
         return matcher;
     }
 
+    /**
+     * Builds {@link #STATS_QUERY}.
+     */
+    private static String buildStatsQuery() {
+        final String count = TomatilloDBHelper.STATS_COUNT;
+        final String rating = TomatilloDBHelper.STATS_RATING;
+
+        StringBuilder query = new StringBuilder("SELECT ");
+        query.append("SUM(").append(count).append(") AS ").append(MovieStats.COUNT);
+        query.append(", CAST(SUM(").append(rating).append(" * ").append(count)
+                .append(") AS REAL) / SUM(").append(count).append(") AS ")
+                .append(MovieStats.AVERAGE_RATING);
+        for (int i = 1; i <= 5; i++) {
+            query.append(", SUM(CASE ").append(rating).append(" WHEN ").append(i)
+                    .append(" THEN ").append(count).append(" ELSE 0 END) AS ")
+                    .append(MovieStats.ratingCountColumn(i));
+        }
+        query.append(" FROM ").append(TomatilloDBHelper.STATS_TABLE_NAME);
+        return query.toString();
+    }
+
+    /**
+     * Builds {@link #CHANGES_QUERY}. All three parts are one statement, so they read the same
+     * snapshot of the database. Either the first part returns rows, the latest change of each
+     * movie changed after ?1, or, if the oldest row of the log is a reset that the consumer has
+     * not seen, the other two do: that reset and every movie. Those all carry the latest sequence
+     * number, the reset too, so that a consumer of an empty table carries on from there rather
+     * than from the reset and is not handed every change logged since.
+     */
+    private static String buildChangesQuery() {
+        final String log = TomatilloDBHelper.CHANGES_TABLE_NAME;
+        final String seq = TomatilloDBHelper.CHANGES_SEQ;
+        final String op = TomatilloDBHelper.CHANGES_OP;
+        final String movieId = TomatilloDBHelper.CHANGES_MOVIE_ID;
+        final String resetPending = "IFNULL((SELECT " + op + " = " + MovieChanges.OP_RESET +
+                " AND " + seq + " > ?1 FROM " + log + " ORDER BY " + seq + " LIMIT 1), 0)";
+
+        return "SELECT c." + seq + " AS " + MovieChanges.SEQ + ", " +
+                "c." + movieId + " AS " + MovieChanges._ID + ", " +
+                "c." + op + " AS " + MovieChanges.OP + ", " +
+                "m." + Movie.TITLE + " AS " + MovieChanges.TITLE + ", " +
+                "m." + Movie.RATING + " AS " + MovieChanges.RATING +
+                " FROM " + log + " AS c LEFT JOIN " + Movie.TABLE_NAME + " AS m" +
+                " ON m." + Movie._ID + " = c." + movieId +
+                " WHERE c." + seq + " IN (SELECT MAX(" + seq + ") FROM " + log +
+                " WHERE " + seq + " > ?1 GROUP BY " + movieId + ")" +
+                " AND c." + op + " != " + MovieChanges.OP_RESET + " AND NOT " + resetPending +
+                " UNION ALL SELECT (SELECT MAX(" + seq + ") FROM " + log + "), NULL, " + op +
+                ", NULL, NULL FROM " + log +
+                " WHERE " + seq + " = (SELECT MIN(" + seq + ") FROM " + log + ") AND " +
+                resetPending +
+                " UNION ALL SELECT (SELECT MAX(" + seq + ") FROM " + log + "), " +
+                Movie._ID + ", " + MovieChanges.OP_INSERT + ", " + Movie.TITLE + ", " +
+                Movie.RATING + " FROM " + Movie.TABLE_NAME + " WHERE " + resetPending;
+    }
+
     @Override
     public boolean onCreate() {
         mDBHelper = new TomatilloDBHelper(getContext());
+        mMetrics = new ProviderMetrics(getConfigInteger(R.integer.provider_slow_call_millis));
+        mNotifier = new ChangeNotifier(getContext().getContentResolver(), Movie.CONTENT_URI,
+                getConfigInteger(R.integer.provider_notification_delay));
+
+        int queryCacheSize = getConfigInteger(R.integer.provider_query_cache_size);
+        if (queryCacheSize > 0) {
+            mQueryCache = new QueryCache(queryCacheSize);
+        }
+        mChangeLogSize = getConfigInteger(R.integer.provider_change_log_size);
+        int mirrorSize = getConfigInteger(R.integer.provider_mirror_size);
+        if (mirrorSize > 0) {
+            mMirror = new MovieMirror(mirrorSize);
+        }
         return true;
     }
 
+    /**
+     * Returns the value of one of the integer resources that configure the provider, such as
+     * provider_query_cache_size. Tests override it to run a provider of their own with settings
+     * the app does not use by default.
+     */
+    protected int getConfigInteger(int id) {
+        return getContext().getResources().getInteger(id);
+    }
+
+    /**
+     * Closes the database, for tests that create and call a provider of their own.
+     */
+    @Override
+    public void shutdown() {
+        mDBHelper.close();
+    }
+
     @Override
     public Cursor query(Uri uri, String[] projection, String selection, String[] selectionArgs,
                         String sortOrder) {
+        long start = System.nanoTime();
+        Cursor cursor = null;
+        try {
+            cursor = queryAndWatch(uri, projection, selection, selectionArgs, sortOrder);
+        } finally {
+            // The query threw.
+            if (cursor == null) {
+                mMetrics.record(ProviderMetrics.OP_QUERY, uri, start, 0);
+            }
+        }
+        return mMetrics.recordQuery(uri, start, cursor);
+    }
+
+    /**
+     * Runs a query, through the query cache if it is on, and sets the Uri that notifies the
+     * cursor of changes.
+     */
+    private Cursor queryAndWatch(Uri uri, String[] projection, String selection,
+                                 String[] selectionArgs, String sortOrder) {
+        final int match = sUriMatcher.match(uri);
+        Cursor cursor;
+        // The progress of an import changes without a write to the movie table, so it is never
+        // cached.
+        if (mQueryCache == null || match == MOVIE_IMPORT) {
+            cursor = queryDatabase(uri, projection, selection, selectionArgs, sortOrder);
+        } else {
+            String key = QueryCache.buildKey(uri, projection, selection, selectionArgs, sortOrder);
+            cursor = mQueryCache.get(key);
+            if (cursor == null) {
+                // Read the generation first, so that a write that lands while the query runs
+                // keeps its result from being served later.
+                long generation = mQueryCache.getGeneration();
+                cursor = mQueryCache.put(key, generation,
+                        queryDatabase(uri, projection, selection, selectionArgs, sortOrder));
+            }
+        }
+
+        // Lets a CursorLoader reload when the data behind the cursor changes. A single movie
+        // only needs to hear about changes to its own row; everything else depends on the whole
+        // table. Either Uri is also notified by changes to the whole table. The progress of an
+        // import is notified on the import's own Uri.
+        Uri notificationUri;
+        if (match == MOVIE_WITH_ID) {
+            notificationUri = buildMovieUri(ContentUris.parseId(uri));
+        } else if (match == MOVIE_IMPORT) {
+            notificationUri = buildImportUri(uri.getLastPathSegment());
+        } else {
+            notificationUri = Movie.CONTENT_URI;
+        }
+        cursor.setNotificationUri(getContext().getContentResolver(), notificationUri);
+        return cursor;
+    }
+
+    /**
+     * Runs a query against the database, bypassing the query cache.
+     */
+    private Cursor queryDatabase(Uri uri, String[] projection, String selection,
+                                 String[] selectionArgs, String sortOrder) {
         SQLiteDatabase db = mDBHelper.getReadableDatabase();
 
         // Get the constant integer representing the uri type and use in the switch statement.
         switch (sUriMatcher.match(uri)) {
             // Case where all movie ratings are selected
             case MOVIE: {
+                String minRating = getRatingParameter(uri, Movie.QUERY_PARAMETER_MIN_RATING);
+                if (minRating != null) {
+                    selection = concatenateWhere(Movie.RATING + " >= ?", selection);
+                    selectionArgs = prependArg(minRating, selectionArgs);
+                }
+                if (uri.getQueryParameter(Movie.QUERY_PARAMETER_SORT_KEY) != null) {
+                    return queryPage(db, uri, projection, selection, selectionArgs, sortOrder);
+                }
+                String limit = getLimit(uri);
+                // The mirror serves the whole table, or the first rows of it, in _ID order.
+                if (mMirror != null && selection == null && sortOrder == null &&
+                        (limit == null || limit.length() < 10)) {
+                    Cursor cursor = mMirror.query(db, projection,
+                            limit != null ? Integer.parseInt(limit) : -1);
+                    if (cursor != null) return cursor;
+                }
                 Cursor cursor = db.query(
                         Movie.TABLE_NAME,
-                        projection, selection, selectionArgs, null, null, sortOrder);
+                        projection, selection, selectionArgs, null, null, sortOrder,
+                        limit);
                 return cursor;
             }
             // Case with only one movie rating selected, by ID
             case MOVIE_WITH_ID: {
+                if (mMirror != null && sortOrder == null) {
+                    Cursor cursor = mMirror.queryById(db, projection, ContentUris.parseId(uri));
+                    if (cursor != null) return cursor;
+                }
+                if (sortOrder == null && (projection == null ||
+                        Arrays.equals(projection, MovieStatements.COLUMNS))) {
+                    return getStatements(db).queryById(ContentUris.parseId(uri));
+                }
                 Cursor cursor = db.query(
                         Movie.TABLE_NAME,
                         projection,
@@ -97,6 +425,49 @@ public class TomatilloProvider extends ContentProvider {
                 );
                 return cursor;
             }
+            // Case where movies are found by a full-text search of their titles
+            case MOVIE_SEARCH: {
+                String match = buildMatchExpression(uri.getLastPathSegment());
+                if (match.length() == 0) {
+                    // Nothing to search for, so nothing matches.
+                    return new MatrixCursor(projection != null ? projection :
+                            new String[] { Movie._ID, Movie.TITLE, Movie.RATING });
+                }
+                Cursor cursor = db.query(
+                        Movie.TABLE_NAME,
+                        projection,
+                        concatenateWhere(SEARCH_SELECTION, selection),
+                        prependArg(match, selectionArgs),
+                        null,
+                        null,
+                        sortOrder != null ? sortOrder : SEARCH_RANK_ORDER,
+                        getLimit(uri)
+                );
+                return cursor;
+            }
+            // Case where the rating statistics are selected
+            case MOVIE_STATS: {
+                Cursor cursor = db.query(
+                        "(" + STATS_QUERY + ")",
+                        projection, selection, selectionArgs, null, null, sortOrder);
+                return cursor;
+            }
+            // Case where the changes since a sequence number are selected
+            case MOVIE_CHANGES: {
+                Cursor cursor = db.query(
+                        "(" + CHANGES_QUERY + ")",
+                        projection,
+                        selection,
+                        prependArg(getSinceParameter(uri), selectionArgs),
+                        null,
+                        null,
+                        sortOrder != null ? sortOrder : CHANGES_ORDER);
+                return cursor;
+            }
+            // Case where the progress of an import is selected
+            case MOVIE_IMPORT: {
+                return queryImport(uri.getLastPathSegment(), projection);
+            }
             default: {
                 // In the default case, the uri must have been bad
                 throw new UnsupportedOperationException("Unknown uri: " + uri);
@@ -104,8 +475,83 @@ public class TomatilloProvider extends ContentProvider {
         }
     }
 
+    /**
+     * Queries one page of movies, as described by the paging parameters of the uri. The page
+     * starts right after the row given by the after_key and after_id parameters, in the order of
+     * the sort key, so that the database can seek straight to it instead of stepping over every
+     * earlier row the way OFFSET does. Every sort key has an index that holds all of the columns
+     * (see TomatilloDBHelper.createMovieIndexes()), so the page is read straight out of it, and
+     * a page or top-N query costs the same however large the table is.
+     */
+    private Cursor queryPage(SQLiteDatabase db, Uri uri, String[] projection, String selection,
+                             String[] selectionArgs, String sortOrder) {
+        String sortKey = uri.getQueryParameter(Movie.QUERY_PARAMETER_SORT_KEY);
+        if (!Movie._ID.equals(sortKey) && !Movie.TITLE.equals(sortKey)
+                && !Movie.RATING.equals(sortKey)) {
+            throw new IllegalArgumentException("Cannot sort pages by " + sortKey);
+        }
+        if (sortOrder != null) {
+            throw new IllegalArgumentException(
+                    "Pages are sorted by their sort key, not " + sortOrder);
+        }
+        boolean descending = getBooleanParameter(uri, Movie.QUERY_PARAMETER_DESCENDING);
+        String direction = descending ? " DESC" : "";
+        String after = descending ? " < ?" : " > ?";
+
+        // Titles are unique, so they need no _ID to break ties, and leaving it out of the order
+        // lets SQLite use the title index as it is.
+        boolean singleKey = Movie._ID.equals(sortKey) || Movie.TITLE.equals(sortKey);
+
+        String afterId = uri.getQueryParameter(Movie.QUERY_PARAMETER_AFTER_ID);
+        if (afterId != null) {
+            String pageSelection;
+            String[] pageArgs;
+            if (Movie._ID.equals(sortKey)) {
+                pageSelection = Movie._ID + after;
+                pageArgs = new String[] { afterId };
+            } else {
+                String afterKey = uri.getQueryParameter(Movie.QUERY_PARAMETER_AFTER_KEY);
+                if (afterKey == null) {
+                    throw new IllegalArgumentException("Missing after_key in " + uri);
+                }
+                if (singleKey) {
+                    pageSelection = sortKey + after;
+                    pageArgs = new String[] { afterKey };
+                } else {
+                    // Equivalent to (key, _id) > (afterKey, afterId), written so that the first
+                    // term lets SQLite start from afterKey in the index on the key.
+                    pageSelection = sortKey + (descending ? " <= ?" : " >= ?") + " AND (" +
+                            sortKey + after + " OR " + Movie._ID + after + ")";
+                    pageArgs = new String[] { afterKey, afterKey, afterId };
+                }
+            }
+            selection = concatenateWhere(pageSelection, selection);
+            selectionArgs = concatenateArgs(pageArgs, selectionArgs);
+        }
+
+        return db.query(
+                Movie.TABLE_NAME,
+                projection,
+                selection,
+                selectionArgs,
+                null,
+                null,
+                singleKey ? sortKey + direction :
+                        sortKey + direction + ", " + Movie._ID + direction,
+                getLimit(uri));
+    }
+
     @Override
     public String getType(Uri uri) {
+        long start = System.nanoTime();
+        try {
+            return getTypeForMatch(uri);
+        } finally {
+            mMetrics.record(ProviderMetrics.OP_GET_TYPE, uri, start, 0);
+        }
+    }
+
+    private String getTypeForMatch(Uri uri) {
         switch (sUriMatcher.match(uri)) {
             case MOVIE: {
                 return Movie.CONTENT_DIR_TYPE;
@@ -113,6 +559,21 @@ public class TomatilloProvider extends ContentProvider {
             case MOVIE_WITH_ID: {
                 return Movie.CONTENT_ITEM_TYPE;
             }
+            case MOVIE_SEARCH: {
+                return Movie.CONTENT_DIR_TYPE;
+            }
+            case MOVIE_STATS: {
+                return MovieStats.CONTENT_ITEM_TYPE;
+            }
+            case MOVIE_IMPORT: {
+                return MovieImport.CONTENT_ITEM_TYPE;
+            }
+            case MOVIE_EXPORT: {
+                return MovieExport.CONTENT_TYPE;
+            }
+            case MOVIE_CHANGES: {
+                return MovieChanges.CONTENT_DIR_TYPE;
+            }
             default: {
                 throw new UnsupportedOperationException("Unknown uri: " + uri);
             }
@@ -121,10 +582,24 @@ public class TomatilloProvider extends ContentProvider {
 
     @Override
     public Uri insert(Uri uri, ContentValues contentValues) {
+        long start = System.nanoTime();
+        Uri result = null;
+        try {
+            result = insertMovie(uri, contentValues);
+            return result;
+        } finally {
+            mMetrics.record(ProviderMetrics.OP_INSERT, uri, start, result != null ? 1 : 0);
+        }
+    }
+
+    private Uri insertMovie(Uri uri, ContentValues contentValues) {
         checkInput(contentValues);
 
         switch (sUriMatcher.match(uri)) {
             case MOVIE: {
+                if (isUpsert(uri)) {
+                    return upsert(contentValues);
+                }
                 long id = -1;
                 // Insert the movie and catch the exception if it's already in the database.
                 try {
@@ -140,8 +615,9 @@ public class TomatilloProvider extends ContentProvider {
                 if (id == -1) return null; // it failed!
                 // Only call if the insert succeeded. This statement notifies anything watching
                 // that the data at this specific uri was changed.
-                getContext().getContentResolver().notifyChange(uri, null);
-                return ContentUris.withAppendedId(Movie.CONTENT_URI, id);
+                Uri movieUri = buildMovieUri(id);
+                notifyChange(movieUri);
+                return movieUri;
             }
             default: {
                 throw new UnsupportedOperationException("Unknown uri: " + uri);
@@ -151,30 +627,47 @@ public class TomatilloProvider extends ContentProvider {
 
     @Override
     public int bulkInsert(Uri uri, ContentValues[] values) {
+        long start = System.nanoTime();
+        int result = 0;
+        try {
+            result = bulkInsertMovies(uri, values);
+            return result;
+        } finally {
+            mMetrics.record(ProviderMetrics.OP_BULK_INSERT, uri, start, result);
+        }
+    }
+
+    private int bulkInsertMovies(Uri uri, ContentValues[] values) {
         final SQLiteDatabase db = mDBHelper.getWritableDatabase();
         final int match = sUriMatcher.match(uri);
         switch (match) {
             case MOVIE:
+                if (isUpsert(uri)) {
+                    int[] counts = upsertMovies(values);
+                    return counts[0] + counts[1];
+                }
 
                 // Allows you to issue multiple transactions and then have them executed in a batch
                 db.beginTransaction();
 
+                // The insert statement is compiled once and reused for every row in the batch.
+                SQLiteStatement insert = db.compileStatement(INSERT_OR_IGNORE_MOVIE);
+
                 // Counts the number of inserts that are successful
                 int numberInserted = 0;
                 try {
                     for (ContentValues value : values) {
                         // Check the data is okay
                         checkInput(value);
-                        // Try to insert
-                        long id = -1;
-                        try {
-                            id = db.insertOrThrow(Movie.TABLE_NAME, null, value);
-                        } catch (SQLiteConstraintException e) {
-                            Log.i(LOG_TAG,
-                                    "Trying to insert " + value.getAsString(Movie.TITLE) +
-                                            " but it's already in the database."
-                            );
-                            // Do nothing if the movie is already there.
+                        // Try to insert. A row that was ignored, for example because the movie is
+                        // already in the database, comes back as -1.
+                        long id;
+                        if (hasOnlyMovieColumns(value)) {
+                            bindMovie(insert, value);
+                            id = insert.executeInsert();
+                        } else {
+                            id = db.insertWithOnConflict(Movie.TABLE_NAME, null, value,
+                                    SQLiteDatabase.CONFLICT_IGNORE);
                         }
                         // As long as the insert didn't fail, increment the numberInserted
                         if (id != -1) {
@@ -185,12 +678,13 @@ public class TomatilloProvider extends ContentProvider {
                     // No further database operations should be done after this call.
                     db.setTransactionSuccessful();
                 } finally {
+                    insert.close();
                     // Causes all of the issued transactions to occur at once
                     db.endTransaction();
                 }
                 if (numberInserted > 0) {
                     // Notifies the content resolver that the underlying data has changed
-                    getContext().getContentResolver().notifyChange(uri, null);
+                    notifyChange(Movie.CONTENT_URI);
                 }
                 return numberInserted;
             default:
@@ -201,19 +695,30 @@ public class TomatilloProvider extends ContentProvider {
 
     @Override
     public int delete(Uri uri, String selection, String[] selectionArgs) {
+        long start = System.nanoTime();
+        int result = 0;
+        try {
+            result = deleteMovies(uri, selection, selectionArgs);
+            return result;
+        } finally {
+            mMetrics.record(ProviderMetrics.OP_DELETE, uri, start, result);
+        }
+    }
+
+    private int deleteMovies(Uri uri, String selection, String[] selectionArgs) {
         final SQLiteDatabase db = mDBHelper.getWritableDatabase();
         final int match = sUriMatcher.match(uri);
         int numberDeleted;
+        Uri changedUri;
         switch (match) {
             case MOVIE:
                 numberDeleted = db.delete(
                         Movie.TABLE_NAME, selection, selectionArgs);
+                changedUri = Movie.CONTENT_URI;
                 break;
             case MOVIE_WITH_ID:
-                numberDeleted = db.delete(
-                        Movie.TABLE_NAME,
-                        Movie._ID + " = ?",
-                        new String[]{String.valueOf(ContentUris.parseId(uri))});
+                numberDeleted = getStatements(db).deleteById(ContentUris.parseId(uri));
+                changedUri = buildMovieUri(ContentUris.parseId(uri));
                 break;
             default:
                 throw new UnsupportedOperationException("Unknown uri: " + uri);
@@ -221,15 +726,28 @@ public class TomatilloProvider extends ContentProvider {
 
         // The first condition works because a null deletes all rows
         if (selection == null || numberDeleted != 0) {
-            getContext().getContentResolver().notifyChange(uri, null);
+            notifyChange(changedUri);
         }
         return numberDeleted;
     }
 
     @Override
     public int update(Uri uri, ContentValues contentValues, String selection, String[] selectionArgs) {
+        long start = System.nanoTime();
+        int result = 0;
+        try {
+            result = updateMovies(uri, contentValues, selection, selectionArgs);
+            return result;
+        } finally {
+            mMetrics.record(ProviderMetrics.OP_UPDATE, uri, start, result);
+        }
+    }
+
+    private int updateMovies(Uri uri, ContentValues contentValues, String selection,
+                             String[] selectionArgs) {
         final SQLiteDatabase db = mDBHelper.getWritableDatabase();
         int numberUpdated = 0;
+        Uri changedUri;
 
         checkInput(contentValues);
 
@@ -240,15 +758,36 @@ public class TomatilloProvider extends ContentProvider {
                         contentValues,
                         selection,
                         selectionArgs);
+                changedUri = Movie.CONTENT_URI;
                 break;
             }
             case MOVIE_WITH_ID: {
+                Integer rating = contentValues.getAsInteger(Movie.RATING);
+                if (contentValues.size() == 1 && rating != null) {
+                    // The common case of re-rating a movie. The mirror can take the new rating
+                    // as it is, unless the write is part of a transaction that could still be
+                    // rolled back.
+                    long id = ContentUris.parseId(uri);
+                    if (mMirror != null && !db.inTransaction()) {
+                        numberUpdated = mMirror.updateRating(getStatements(db), id, rating);
+                        if (numberUpdated != 0) {
+                            notifyObservers(buildMovieUri(id));
+                        }
+                    } else {
+                        numberUpdated = getStatements(db).updateRatingById(id, rating);
+                        if (numberUpdated != 0) {
+                            notifyChange(buildMovieUri(id));
+                        }
+                    }
+                    return numberUpdated;
+                }
                 numberUpdated = db.update(
                         Movie.TABLE_NAME,
                         contentValues,
                         Movie._ID + " = ?",
                         new String[]{String.valueOf(ContentUris.parseId(uri))}
                 );
+                changedUri = buildMovieUri(ContentUris.parseId(uri));
                 break;
             }
             default: {
@@ -256,11 +795,767 @@ public class TomatilloProvider extends ContentProvider {
             }
         }
         if (numberUpdated != 0) {
-            getContext().getContentResolver().notifyChange(uri, null);
+            notifyChange(changedUri);
+        }
+        return numberUpdated;
+    }
+
+    /**
+     * Returns one row with the progress of the import with the given name, or no rows if there
+     * has been no such import.
+     */
+    private Cursor queryImport(String name, String[] projection) {
+        if (projection == null) {
+            projection = new String[] { MovieImport.STATUS, MovieImport.ROWS_READ,
+                    MovieImport.INSERTED, MovieImport.UPDATED, MovieImport.SKIPPED,
+                    MovieImport.ERROR };
+        }
+        MatrixCursor cursor = new MatrixCursor(projection, 1);
+        MovieImporter importer;
+        synchronized (mImports) {
+            importer = mImports.get(name);
+        }
+        if (importer == null) return cursor;
+
+        Object[] row = new Object[projection.length];
+        for (int i = 0; i < projection.length; i++) {
+            String column = projection[i];
+            if (MovieImport.STATUS.equals(column)) {
+                row[i] = importer.getStatus();
+            } else if (MovieImport.ROWS_READ.equals(column)) {
+                row[i] = importer.getRowsRead();
+            } else if (MovieImport.INSERTED.equals(column)) {
+                row[i] = importer.getInserted();
+            } else if (MovieImport.UPDATED.equals(column)) {
+                row[i] = importer.getUpdated();
+            } else if (MovieImport.SKIPPED.equals(column)) {
+                row[i] = importer.getSkipped();
+            } else if (MovieImport.ERROR.equals(column)) {
+                row[i] = importer.getError();
+            } else {
+                throw new IllegalArgumentException("Unknown column " + column);
+            }
+        }
+        cursor.addRow(row);
+        return cursor;
+    }
+
+    /**
+     * Opens a pipe for a streamed import or export, see {@link MovieImport} and
+     * {@link MovieExport}.
+     */
+    @Override
+    public ParcelFileDescriptor openFile(Uri uri, String mode) throws FileNotFoundException {
+        switch (sUriMatcher.match(uri)) {
+            case MOVIE_IMPORT: {
+                return openImport(uri, mode);
+            }
+            case MOVIE_EXPORT: {
+                return openExport(mode);
+            }
+            default: {
+                throw new FileNotFoundException("No file for " + uri);
+            }
+        }
+    }
+
+    /**
+     * Starts a streamed import and returns the write end of a pipe for the caller to write the
+     * movies to. A thread of its own reads the other end until the caller closes it, so the
+     * movies are written to the database while the caller is still sending them.
+     */
+    private ParcelFileDescriptor openImport(Uri uri, String mode) throws FileNotFoundException {
+        if (mode.indexOf('w') < 0 || mode.indexOf('r') >= 0) {
+            throw new FileNotFoundException("Imports can only be opened for writing, not " + mode);
+        }
+        final String name = uri.getLastPathSegment();
+        final MovieImporter importer = new MovieImporter(mDBHelper.getWritableDatabase(),
+                uri.getQueryParameter(MovieImport.QUERY_PARAMETER_FORMAT), isUpsert(uri),
+                MovieImport.CHUNK_SIZE);
+        synchronized (mImports) {
+            MovieImporter running = mImports.get(name);
+            if (running != null && MovieImport.STATUS_RUNNING.equals(running.getStatus())) {
+                throw new IllegalStateException("Import " + name + " is already running");
+            }
+            mImports.put(name, importer);
+        }
+
+        ParcelFileDescriptor[] pipe;
+        try {
+            pipe = ParcelFileDescriptor.createPipe();
+        } catch (IOException e) {
+            synchronized (mImports) {
+                mImports.remove(name);
+            }
+            throw new FileNotFoundException("Could not create a pipe: " + e.getMessage());
+        }
+
+        final InputStream in = new ParcelFileDescriptor.AutoCloseInputStream(pipe[0]);
+        new Thread("import-" + name) {
+            @Override
+            public void run() {
+                runImport(name, importer, in);
+            }
+        }.start();
+        return pipe[1];
+    }
+
+    /**
+     * Runs an import on the current thread until the stream ends.
+     */
+    private void runImport(String name, MovieImporter importer, InputStream in) {
+        final Uri importUri = buildImportUri(name);
+        try {
+            importer.run(new BufferedReader(new InputStreamReader(in, "UTF-8")),
+                    new MovieImporter.Listener() {
+                        @Override
+                        public void onChunkCommitted(int changed) {
+                            // Observers of the import Uri hear about changes to the table too.
+                            if (changed > 0) {
+                                notifyChange(Movie.CONTENT_URI);
+                            } else {
+                                getContext().getContentResolver().notifyChange(importUri, null);
+                            }
+                        }
+                    });
+        } catch (IOException e) {
+            Log.e(LOG_TAG, "Import " + name + " failed", e);
+        } catch (RuntimeException e) {
+            Log.e(LOG_TAG, "Import " + name + " failed", e);
+        } finally {
+            try {
+                in.close();
+            } catch (IOException e) {
+                // Nothing left to do with it.
+            }
+        }
+        Log.i(LOG_TAG, "Import " + name + " " + importer.getStatus() + ": " +
+                importer.getInserted() + " inserted, " + importer.getUpdated() + " updated, " +
+                importer.getSkipped() + " skipped");
+        getContext().getContentResolver().notifyChange(importUri, null);
+    }
+
+    /**
+     * Starts an export and returns the read end of a pipe for the caller to read the movies
+     * from. A thread of its own writes the other end, blocking whenever the pipe is full.
+     */
+    private ParcelFileDescriptor openExport(String mode) throws FileNotFoundException {
+        if (!"r".equals(mode)) {
+            throw new FileNotFoundException("The export can only be opened for reading, not " +
+                    mode);
+        }
+        ParcelFileDescriptor[] pipe;
+        try {
+            pipe = ParcelFileDescriptor.createPipe();
+        } catch (IOException e) {
+            throw new FileNotFoundException("Could not create a pipe: " + e.getMessage());
+        }
+
+        final OutputStream out = new ParcelFileDescriptor.AutoCloseOutputStream(pipe[1]);
+        new Thread("export") {
+            @Override
+            public void run() {
+                runExport(out);
+            }
+        }.start();
+        return pipe[0];
+    }
+
+    /**
+     * Writes every movie to the stream in the {@link MovieExport} format and closes it.
+     */
+    private void runExport(OutputStream out) {
+        Cursor cursor = mDBHelper.getReadableDatabase().query(Movie.TABLE_NAME,
+                new String[] { Movie._ID, Movie.TITLE, Movie.RATING },
+                null, null, null, null, Movie._ID);
+        DataOutputStream data = new DataOutputStream(new BufferedOutputStream(out, 64 * 1024));
+        int count = 0;
+        try {
+            while (cursor.moveToNext()) {
+                byte[] title = cursor.getString(1).getBytes("UTF-8");
+                data.writeInt(title.length);
+                data.write(title);
+                data.writeInt(cursor.getInt(2));
+                data.writeLong(cursor.getLong(0));
+                count++;
+            }
+            data.writeInt(MovieExport.END_OF_EXPORT);
+            data.flush();
+            Log.i(LOG_TAG, "Exported " + count + " movies");
+        } catch (IOException e) {
+            // Most likely the reader closed its end early. Leaving out the end marker tells it
+            // the export is incomplete if it is still reading.
+            Log.w(LOG_TAG, "Export stopped after " + count + " movies", e);
+        } finally {
+            cursor.close();
+            try {
+                data.close();
+            } catch (IOException e) {
+                // Nothing left to do with it.
+            }
+        }
+    }
+
+    /**
+     * Handles the provider methods described in {@link TomatilloContract}.
+     */
+    @Override
+    public Bundle call(String method, String arg, Bundle extras) {
+        if (TomatilloContract.METHOD_UPSERT.equals(method)) {
+            if (extras == null) {
+                throw new IllegalArgumentException("Missing " + TomatilloContract.EXTRA_VALUES);
+            }
+            Parcelable[] parcelables = extras.getParcelableArray(TomatilloContract.EXTRA_VALUES);
+            if (parcelables == null) {
+                throw new IllegalArgumentException("Missing " + TomatilloContract.EXTRA_VALUES);
+            }
+            ContentValues[] values = new ContentValues[parcelables.length];
+            System.arraycopy(parcelables, 0, values, 0, parcelables.length);
+
+            int[] counts = upsertMovies(values);
+            Bundle result = new Bundle();
+            result.putInt(TomatilloContract.EXTRA_INSERTED, counts[0]);
+            result.putInt(TomatilloContract.EXTRA_UPDATED, counts[1]);
+            return result;
+        }
+        if (TomatilloContract.METHOD_UPDATE_RATINGS.equals(method)) {
+            if (extras == null) {
+                throw new IllegalArgumentException("Missing " + TomatilloContract.EXTRA_IDS);
+            }
+            long[] ids = extras.getLongArray(TomatilloContract.EXTRA_IDS);
+            int[] ratings = extras.getIntArray(TomatilloContract.EXTRA_RATINGS);
+            Bundle result = new Bundle();
+            result.putInt(TomatilloContract.EXTRA_UPDATED, updateRatings(ids, ratings));
+            return result;
+        }
+        if (TomatilloContract.METHOD_DELETE_IDS.equals(method)) {
+            if (extras == null) {
+                throw new IllegalArgumentException("Missing " + TomatilloContract.EXTRA_IDS);
+            }
+            long[] ids = extras.getLongArray(TomatilloContract.EXTRA_IDS);
+            Bundle result = new Bundle();
+            result.putInt(TomatilloContract.EXTRA_DELETED, deleteIds(ids));
+            return result;
+        }
+        if (TomatilloContract.METHOD_UPDATE_IDS.equals(method)) {
+            if (extras == null) {
+                throw new IllegalArgumentException("Missing " + TomatilloContract.EXTRA_IDS);
+            }
+            long[] ids = extras.getLongArray(TomatilloContract.EXTRA_IDS);
+            ContentValues values = extras.getParcelable(TomatilloContract.EXTRA_VALUE);
+            Bundle result = new Bundle();
+            result.putInt(TomatilloContract.EXTRA_UPDATED, updateIds(ids, values));
+            return result;
+        }
+        if (TomatilloContract.METHOD_QUERY_CACHE_STATS.equals(method)) {
+            Bundle result = new Bundle();
+            if (mQueryCache != null) {
+                result.putLong(TomatilloContract.EXTRA_HITS, mQueryCache.getHitCount());
+                result.putLong(TomatilloContract.EXTRA_MISSES, mQueryCache.getMissCount());
+                result.putInt(TomatilloContract.EXTRA_ENTRIES, mQueryCache.getEntryCount());
+                result.putInt(TomatilloContract.EXTRA_SIZE, mQueryCache.getSize());
+            }
+            return result;
+        }
+        if (TomatilloContract.METHOD_METRICS.equals(method)) {
+            return mMetrics.toBundle();
+        }
+        if (TomatilloContract.METHOD_METRICS_RESET.equals(method)) {
+            mMetrics.reset();
+            return new Bundle();
+        }
+        return super.call(method, arg, extras);
+    }
+
+    /**
+     * Inserts a single movie, or updates its rating if the title is already in the database, and
+     * returns the Uri of the row.
+     */
+    private Uri upsert(ContentValues contentValues) {
+        int[] counts = upsertMovies(new ContentValues[] { contentValues });
+        if (counts[0] + counts[1] == 0) return null; // it failed!
+        long id = DatabaseUtils.longForQuery(mDBHelper.getReadableDatabase(),
+                "SELECT " + Movie._ID + " FROM " + Movie.TABLE_NAME +
+                        " WHERE " + Movie.TITLE + " = ?",
+                new String[] { contentValues.getAsString(Movie.TITLE) });
+        return ContentUris.withAppendedId(Movie.CONTENT_URI, id);
+    }
+
+    /**
+     * Inserts the movies that are not in the database yet and updates the rating of the ones that
+     * are, all in one transaction with one statement of each kind compiled for the whole batch.
+     * Movies without a title or rating are skipped.
+     *
+     * @return the number of rows inserted and the number of rows updated, in that order.
+     */
+    private int[] upsertMovies(ContentValues[] values) {
+        final SQLiteDatabase db = mDBHelper.getWritableDatabase();
+        int[] counts = new int[2];
+
+        db.beginTransaction();
+        SQLiteStatement insert = db.compileStatement(INSERT_OR_IGNORE_MOVIE);
+        SQLiteStatement update = db.compileStatement(UPDATE_RATING_BY_TITLE);
+        try {
+            for (ContentValues value : values) {
+                checkInput(value);
+                String title = value.getAsString(Movie.TITLE);
+                Long rating = value.getAsLong(Movie.RATING);
+
+                long id;
+                if (hasOnlyMovieColumns(value)) {
+                    bindMovie(insert, value);
+                    id = insert.executeInsert();
+                } else {
+                    id = db.insertWithOnConflict(Movie.TABLE_NAME, null, value,
+                            SQLiteDatabase.CONFLICT_IGNORE);
+                }
+                if (id != -1) {
+                    counts[0]++;
+                } else if (title != null && rating != null) {
+                    // The insert was ignored, so the title is already there.
+                    int numberUpdated;
+                    if (hasOnlyMovieColumns(value)) {
+                        update.bindLong(1, rating);
+                        update.bindString(2, title);
+                        numberUpdated = executeUpdateDelete(db, update);
+                    } else {
+                        numberUpdated = db.update(Movie.TABLE_NAME, value,
+                                Movie.TITLE + " = ?", new String[] { title });
+                    }
+                    counts[1] += numberUpdated;
+                }
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            insert.close();
+            update.close();
+            db.endTransaction();
+        }
+
+        if (counts[0] + counts[1] > 0) {
+            notifyChange(Movie.CONTENT_URI);
+        }
+        return counts;
+    }
+
+    /**
+     * Sets the rating of each movie in ids to the rating at the same index in ratings, in one
+     * transaction with one compiled statement, and returns the number of rows updated. Every
+     * rating is checked before anything is written.
+     */
+    private int updateRatings(long[] ids, int[] ratings) {
+        if (ids == null || ratings == null) {
+            throw new IllegalArgumentException("Missing " + TomatilloContract.EXTRA_IDS +
+                    " or " + TomatilloContract.EXTRA_RATINGS);
+        }
+        if (ids.length != ratings.length) {
+            throw new IllegalArgumentException(ids.length + " ids but " + ratings.length +
+                    " ratings");
+        }
+        for (int rating : ratings) {
+            checkRating(rating);
+        }
+
+        final SQLiteDatabase db = mDBHelper.getWritableDatabase();
+        int numberUpdated = 0;
+        db.beginTransaction();
+        SQLiteStatement update = db.compileStatement(UPDATE_RATING_BY_ID);
+        try {
+            for (int i = 0; i < ids.length; i++) {
+                update.bindLong(1, ratings[i]);
+                update.bindLong(2, ids[i]);
+                numberUpdated += executeUpdateDelete(db, update);
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            update.close();
+            db.endTransaction();
+        }
+
+        if (numberUpdated > 0) {
+            notifyChange(ids.length == 1 ? buildMovieUri(ids[0]) : Movie.CONTENT_URI);
+        }
+        return numberUpdated;
+    }
+
+    /**
+     * Deletes the movies with the given _IDs in one transaction and returns the number of rows
+     * deleted.
+     */
+    private int deleteIds(long[] ids) {
+        if (ids == null) {
+            throw new IllegalArgumentException("Missing " + TomatilloContract.EXTRA_IDS);
+        }
+        int numberDeleted = executeForIds("DELETE FROM " + Movie.TABLE_NAME, new Object[0], ids);
+        if (numberDeleted > 0) {
+            notifyChange(ids.length == 1 ? buildMovieUri(ids[0]) : Movie.CONTENT_URI);
+        }
+        return numberDeleted;
+    }
+
+    /**
+     * Sets the values on the movies with the given _IDs in one transaction and returns the
+     * number of rows updated. Only the title and the rating can be set.
+     */
+    private int updateIds(long[] ids, ContentValues values) {
+        if (ids == null || values == null || values.size() == 0) {
+            throw new IllegalArgumentException("Missing " + TomatilloContract.EXTRA_IDS +
+                    " or " + TomatilloContract.EXTRA_VALUE);
+        }
+        checkInput(values);
+
+        StringBuilder sql = new StringBuilder("UPDATE " + Movie.TABLE_NAME + " SET ");
+        Object[] args = new Object[values.size()];
+        int i = 0;
+        for (Map.Entry<String, Object> value : values.valueSet()) {
+            String column = value.getKey();
+            if (!Movie.TITLE.equals(column) && !Movie.RATING.equals(column)) {
+                throw new IllegalArgumentException("Cannot update " + column);
+            }
+            sql.append(i > 0 ? ", " : "").append(column).append(" = ?");
+            args[i++] = value.getValue();
+        }
+
+        int numberUpdated = executeForIds(sql.toString(), args, ids);
+        if (numberUpdated > 0) {
+            notifyChange(ids.length == 1 ? buildMovieUri(ids[0]) : Movie.CONTENT_URI);
         }
         return numberUpdated;
     }
 
+    /**
+     * Runs an UPDATE or DELETE statement on the movies with the given _IDs, in one transaction,
+     * and returns the number of rows changed. The SQL is given without its WHERE clause, and its
+     * own parameters are bound to args. The _IDs are matched with IN lists that, together with
+     * args, stay within {@link #MAX_BIND_ARGS}, and a statement with a full IN list is compiled
+     * once and run for every full chunk of _IDs.
+     */
+    private int executeForIds(String sql, Object[] args, long[] ids) {
+        final SQLiteDatabase db = mDBHelper.getWritableDatabase();
+        final int chunkSize = MAX_BIND_ARGS - args.length;
+        int numberChanged = 0;
+        SQLiteStatement full = null;
+        db.beginTransaction();
+        try {
+            for (int start = 0; start < ids.length; start += chunkSize) {
+                int count = Math.min(chunkSize, ids.length - start);
+                SQLiteStatement statement;
+                if (count == chunkSize) {
+                    if (full == null) {
+                        full = compileForIds(db, sql, args, count);
+                    }
+                    statement = full;
+                } else {
+                    statement = compileForIds(db, sql, args, count);
+                }
+                try {
+                    for (int i = 0; i < count; i++) {
+                        statement.bindLong(args.length + i + 1, ids[start + i]);
+                    }
+                    numberChanged += executeUpdateDelete(db, statement);
+                } finally {
+                    if (statement != full) {
+                        statement.close();
+                    }
+                }
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            if (full != null) {
+                full.close();
+            }
+            db.endTransaction();
+        }
+        return numberChanged;
+    }
+
+    /**
+     * Compiles the SQL with a WHERE clause matching count _IDs, and binds args to its own
+     * parameters. Those bindings stay in place while the _IDs are bound again for each chunk.
+     */
+    private static SQLiteStatement compileForIds(SQLiteDatabase db, String sql, Object[] args,
+                                                 int count) {
+        StringBuilder where = new StringBuilder(sql);
+        where.append(" WHERE ").append(Movie._ID).append(" IN (");
+        for (int i = 0; i < count; i++) {
+            where.append(i > 0 ? ",?" : "?");
+        }
+        where.append(')');
+        SQLiteStatement statement = db.compileStatement(where.toString());
+        for (int i = 0; i < args.length; i++) {
+            DatabaseUtils.bindObjectToProgram(statement, i + 1, args[i]);
+        }
+        return statement;
+    }
+
+    /**
+     * Returns the precompiled statements for the database, compiling them the first time.
+     */
+    private MovieStatements getStatements(SQLiteDatabase db) {
+        MovieStatements statements = mStatements;
+        if (statements == null || !statements.belongsTo(db)) {
+            synchronized (this) {
+                statements = mStatements;
+                if (statements == null || !statements.belongsTo(db)) {
+                    statements = new MovieStatements(db);
+                    mStatements = statements;
+                }
+            }
+        }
+        return statements;
+    }
+
+    /**
+     * Whether the uri asks for inserts to update movies that already exist.
+     */
+    private static boolean isUpsert(Uri uri) {
+        return "true".equals(uri.getQueryParameter(Movie.QUERY_PARAMETER_UPSERT));
+    }
+
+    /**
+     * Executes an UPDATE or DELETE statement and returns the number of rows it changed.
+     * SQLiteStatement.executeUpdateDelete() needs API 11, so older versions ask SQLite for the
+     * change count of the statement instead.
+     */
+    static int executeUpdateDelete(SQLiteDatabase db, SQLiteStatement statement) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB) {
+            return statement.executeUpdateDelete();
+        }
+        statement.execute();
+        return (int) DatabaseUtils.longForQuery(db, "SELECT changes()", null);
+    }
+
+    /**
+     * Applies all of the operations in a single transaction, instead of one implicit transaction
+     * per operation, and notifies observers once at the end rather than once per operation.
+     * That notification is for the changed row if only one row changed, otherwise for the table.
+     * Every {@link #BATCH_YIELD_INTERVAL} operations, and before any operation built with
+     * withYieldAllowed(true), the transaction yields if another thread is waiting for the
+     * database. Yielding commits the work done so far, so a failure later in a large batch only
+     * rolls back the operations since the last yield.
+     */
+    @Override
+    public ContentProviderResult[] applyBatch(ArrayList<ContentProviderOperation> operations)
+            throws OperationApplicationException {
+        final SQLiteDatabase db = mDBHelper.getWritableDatabase();
+        final ContentProviderResult[] results = new ContentProviderResult[operations.size()];
+
+        mNotifier.beginBatch();
+        db.beginTransaction();
+        try {
+            for (int i = 0; i < results.length; i++) {
+                ContentProviderOperation operation = operations.get(i);
+                if (i > 0 && (operation.isYieldAllowed() || i % BATCH_YIELD_INTERVAL == 0)) {
+                    db.yieldIfContendedSafely();
+                }
+                results[i] = operation.apply(this, results, i);
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+            // Notify even if the batch failed, since anything before the last yield was committed.
+            // The query cache and the mirror were invalidated by each operation, but readers may
+            // have cached or loaded what they saw before the commit, so they have to be
+            // invalidated again.
+            if (mNotifier.endBatch()) {
+                if (mQueryCache != null) {
+                    mQueryCache.invalidate();
+                }
+                if (mMirror != null) {
+                    mMirror.invalidate();
+                }
+                maybeCompactChanges(db);
+            }
+        }
+        return results;
+    }
+
+    /**
+     * Invalidates the mirror and cached query results and notifies anything watching the uri that
+     * its data changed. Inside applyBatch the notification waits for the end of the batch.
+     */
+    private void notifyChange(Uri uri) {
+        if (mMirror != null) {
+            mMirror.invalidate();
+        }
+        notifyObservers(uri);
+    }
+
+    /**
+     * Like {@link #notifyChange(Uri)}, for a write that has already been applied to the mirror.
+     */
+    private void notifyObservers(Uri uri) {
+        if (mQueryCache != null) {
+            mQueryCache.invalidate();
+        }
+        mNotifier.notifyChange(uri);
+
+        SQLiteDatabase db = mDBHelper.getWritableDatabase();
+        if (!db.inTransaction()) {
+            maybeCompactChanges(db);
+        }
+    }
+
+    /**
+     * Compacts the change log once provider_change_log_size changes have been logged since it was
+     * last compacted, so that it never holds much more than twice that many rows. Checking costs
+     * one lookup of the highest sequence number, and a compaction costs about as much as
+     * reading the log, once for every provider_change_log_size changes.
+     */
+    private void maybeCompactChanges(SQLiteDatabase db) {
+        synchronized (mCompactLock) {
+            long seq = DatabaseUtils.longForQuery(db, "SELECT IFNULL(MAX(" +
+                    TomatilloDBHelper.CHANGES_SEQ + "), 0) FROM " +
+                    TomatilloDBHelper.CHANGES_TABLE_NAME, null);
+            if (seq - mCompactedSeq <= mChangeLogSize) return;
+            TomatilloDBHelper.compactChanges(db, mChangeLogSize);
+            mCompactedSeq = seq;
+        }
+        // A consumer whose changes were dropped now gets a reset instead.
+        if (mQueryCache != null) {
+            mQueryCache.invalidate();
+        }
+    }
+
+    /**
+     * Returns the Uri of the movie with the given id, without any query parameters.
+     */
+    private static Uri buildMovieUri(long id) {
+        return ContentUris.withAppendedId(Movie.CONTENT_URI, id);
+    }
+
+    /**
+     * Returns the Uri of the import with the given name, without any query parameters.
+     */
+    private static Uri buildImportUri(String name) {
+        return MovieImport.CONTENT_URI.buildUpon().appendPath(name).build();
+    }
+
+    /**
+     * Turns the words of a search query into an FTS3 MATCH expression in which every word has to
+     * appear in the title, whole or as a prefix. Punctuation is dropped and words are lower-cased
+     * so that they can never be read as FTS operators. Returns an empty string if the query has
+     * no words in it.
+     */
+    private static String buildMatchExpression(String query) {
+        StringBuilder match = new StringBuilder();
+        for (String word : query.split("[^\\p{L}\\p{N}]+")) {
+            if (word.length() == 0) continue;
+            if (match.length() > 0) match.append(' ');
+            match.append(word.toLowerCase(Locale.US)).append('*');
+        }
+        return match.toString();
+    }
+
+    /**
+     * Returns the limit query parameter of the uri, or null if it has none. Throws
+     * IllegalArgumentException if the limit is not a non-negative number.
+     */
+    private static String getLimit(Uri uri) {
+        String limit = uri.getQueryParameter(Movie.QUERY_PARAMETER_LIMIT);
+        if (limit == null) return null;
+        if (!TextUtils.isDigitsOnly(limit) || limit.length() == 0) {
+            throw new IllegalArgumentException("Invalid limit " + limit + " in " + uri);
+        }
+        return limit;
+    }
+
+    /**
+     * Returns the since query parameter of the uri, or "0" if it has none. Throws
+     * IllegalArgumentException if it is not a non-negative number.
+     */
+    private static String getSinceParameter(Uri uri) {
+        String since = uri.getQueryParameter(MovieChanges.QUERY_PARAMETER_SINCE);
+        if (since == null) return "0";
+        if (!TextUtils.isDigitsOnly(since) || since.length() == 0) {
+            throw new IllegalArgumentException("Invalid since " + since + " in " + uri);
+        }
+        return since;
+    }
+
+    /**
+     * Returns whether the query parameter is "true". Throws IllegalArgumentException if it is set
+     * to anything but "true" or "false".
+     */
+    private static boolean getBooleanParameter(Uri uri, String name) {
+        String value = uri.getQueryParameter(name);
+        if (value == null || "false".equals(value)) return false;
+        if ("true".equals(value)) return true;
+        throw new IllegalArgumentException("Invalid " + name + " " + value + " in " + uri);
+    }
+
+    /**
+     * Returns the rating in the query parameter, or null if it is not set. Throws
+     * IllegalArgumentException if it is not a rating from 1 to 5.
+     */
+    private static String getRatingParameter(Uri uri, String name) {
+        String value = uri.getQueryParameter(name);
+        if (value == null) return null;
+        if (value.length() != 1 || value.charAt(0) < '1' || value.charAt(0) > '5') {
+            throw new IllegalArgumentException("Invalid " + name + " " + value + " in " + uri);
+        }
+        return value;
+    }
+
+    /**
+     * Combines two selections so that rows have to match both. Either may be null.
+     */
+    private static String concatenateWhere(String a, String b) {
+        if (TextUtils.isEmpty(a)) return b;
+        if (TextUtils.isEmpty(b)) return a;
+        return "(" + a + ") AND (" + b + ")";
+    }
+
+    /**
+     * Returns the selection arguments with one more argument in front, for use with
+     * {@link #concatenateWhere(String, String)}.
+     */
+    private static String[] prependArg(String arg, String[] args) {
+        return concatenateArgs(new String[] { arg }, args);
+    }
+
+    /**
+     * Joins two arrays of selection arguments, for use with
+     * {@link #concatenateWhere(String, String)}. Either may be null.
+     */
+    private static String[] concatenateArgs(String[] a, String[] b) {
+        if (a == null) return b;
+        if (b == null) return a;
+        String[] result = new String[a.length + b.length];
+        System.arraycopy(a, 0, result, 0, a.length);
+        System.arraycopy(b, 0, result, a.length, b.length);
+        return result;
+    }
+
+    /**
+     * Whether the values hold nothing but a title and a rating, so that they can be written with
+     * {@link #INSERT_OR_IGNORE_MOVIE}.
+     */
+    private static boolean hasOnlyMovieColumns(ContentValues values) {
+        int movieColumns = (values.containsKey(Movie.TITLE) ? 1 : 0) +
+                (values.containsKey(Movie.RATING) ? 1 : 0);
+        return values.size() == movieColumns;
+    }
+
+    /**
+     * Binds the title and rating in values to the two parameters of statement. Missing values are
+     * bound as NULL.
+     */
+    private static void bindMovie(SQLiteStatement statement, ContentValues values) {
+        String title = values.getAsString(Movie.TITLE);
+        if (title == null) {
+            statement.bindNull(1);
+        } else {
+            statement.bindString(1, title);
+        }
+        Long rating = values.getAsLong(Movie.RATING);
+        if (rating == null) {
+            statement.bindNull(2);
+        } else {
+            statement.bindLong(2, rating);
+        }
+    }
+
     /**
      * Checks whether values can be inserted in the database. Throws IllegalArgumentException if:
      * 1. Values is null
@@ -273,7 +1568,16 @@ public class TomatilloProvider extends ContentProvider {
 
         Integer rating = values.getAsInteger(Movie.RATING);
 
-        if ((rating != null) && (rating.intValue() < 1 || rating.intValue() > 5)) {
+        if (rating != null) {
+            checkRating(rating);
+        }
+    }
+
+    /**
+     * Throws IllegalArgumentException if the rating is not between 1 and 5.
+     */
+    private static void checkRating(int rating) {
+        if (rating < 1 || rating > 5) {
             throw new IllegalArgumentException("The rating " +
                    rating + " is not between 1 and 5.");
         }